@@ -1,10 +1,12 @@
 package it.sephiroth.android.library.imagezoom;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.GestureDetector.OnGestureListener;
@@ -12,6 +14,7 @@ import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.ScaleGestureDetector.OnScaleGestureListener;
 import android.view.ViewConfiguration;
+import it.sephiroth.android.library.imagezoom.loader.PageRing;
 
 public class ImageViewTouch extends ImageViewTouchBase {
 
@@ -49,6 +52,13 @@ public class ImageViewTouch extends ImageViewTouchBase {
     private boolean bLastZoomState = false;
     private boolean bZoomState = false;
 
+    /**
+     * True while the user drags the image
+     */
+    private boolean mScrolling = false;
+
+    private final Rect mImageViewRect = new Rect();
+
     /**
      * Y-coordinate of previously handled touch event
      */
@@ -69,10 +79,39 @@ public class ImageViewTouch extends ImageViewTouchBase {
      */
     private int mLongPressTimeout;
 
+    /**
+     * MOVE input received since the last frame, composed in order into a
+     * single transform (a scale about the origin followed by a translation)
+     * and applied once, as a single matrix update, at the next frame
+     */
+    private float mPendingScaleFactor = 1f;
+    private float mPendingTransX;
+    private float mPendingTransY;
+    private float mPendingScale;
+    private boolean mHasPendingScale;
+    private boolean mHasPendingMoves;
+    private boolean mMovesScheduled;
+
+    /**
+     * Number of MOVE samples which moved the image, historical ones included,
+     * and number of matrix updates they produced
+     */
+    private int mEventSamples;
+    private long mMoveSampleCount;
+    private long mMoveUpdateCount;
+
+    private final Runnable mApplyMovesRunnable = new Runnable() {
+        public void run() {
+            mMovesScheduled = false;
+            applyPendingMoves();
+        }
+    };
+
     private final Runnable mLongPressRunnable = new Runnable() {
         public void run() {
             bLastZoomState = true;
             bZoomState = true;
+            updateRenderQuality();
             if (mTapListener != null) {
                 mTapListener.onImageScaling(true);
             }
@@ -151,24 +190,36 @@ public class ImageViewTouch extends ImageViewTouchBase {
     }
 
     @Override
-    protected void onBitmapChanged(Drawable drawable) {
-        super.onBitmapChanged(drawable);
+    protected void _setImageDrawable(Drawable[] drawable, boolean reset,
+            Matrix initial_matrix, float maxZoom) {
+        clearPendingMoves();
+        super._setImageDrawable(drawable, reset, initial_matrix, maxZoom);
+    }
 
-        float v[] = new float[9];
-        mSuppMatrix.getValues(v);
-        mCurrentScaleFactor = v[Matrix.MSCALE_X];
+    @Override
+    protected void displayPage(PageRing.Slot slot) {
+        clearPendingMoves();
+        super.displayPage(slot);
     }
 
     @Override
-    protected void _setImageDrawable(final Drawable[] drawable,
-                                     final boolean reset, final Matrix initial_matrix,
-                                     final float maxZoom) {
-        super._setImageDrawable(drawable, reset, initial_matrix, maxZoom);
+    protected void onBitmapChanged(Drawable drawable) {
+        super.onBitmapChanged(drawable);
+
+        mCurrentScaleFactor = getScale();
         mScaleFactor = getMaxZoom() / 3;
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if ((event.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_MOVE) {
+            mEventSamples = 1 + event.getHistorySize();
+        } else {
+            mEventSamples = 0;
+            // flings and gesture ends must see the up to date matrix
+            flushPendingMoves();
+        }
+
         if (!bZoomState) {
             mScaleDetector.onTouchEvent(event);
             if (!mScaleDetector.isInProgress())
@@ -191,9 +242,12 @@ public class ImageViewTouch extends ImageViewTouchBase {
                     bZoomState = false;
                 }
                 mEnabledScrollChangeImage = false;
+                mScrolling = false;
                 break;
 
             case MotionEvent.ACTION_DOWN:
+                // touching the image stops it
+                stopFling();
                 if (mOneHandScaleEnabled) {
                     postDelayed(mLongPressRunnable, mLongPressTimeout);
                     mDownX = x;
@@ -211,12 +265,13 @@ public class ImageViewTouch extends ImageViewTouchBase {
                         final float dy = (y - mY) / getHeight();
 
                         if (bZoomState) {
+                            // the historical samples are included: only the
+                            // total distance since the last event matters
                             float targetScale = (float) Math.pow(20, -dy)
-                                    * getScale();
-                            zoomTo(targetScale, mDownX, mDownY);
+                                    * getPendingScale();
+                            postZoomTo(targetScale, mDownX, mDownY);
                             mCurrentScaleFactor = Math.min(getMaxZoom(),
                                     Math.max(targetScale, getMinZoom() - 1.0f));
-                            invalidate();
                         } else {
                             final float scrollX = mDownX - x;
                             final float scrollY = mDownY - y;
@@ -246,22 +301,16 @@ public class ImageViewTouch extends ImageViewTouchBase {
                                     }
                                 }
 
+                                boolean changed = false;
                                 if (next) {
-                                    if (mDrawables[1] != null) {
-                                        if (mCurrentUseDrawable != 1) {
-                                            mCurrentUseDrawable = 1;
-                                            super.setImageDrawable(mDrawables, true, null, getMaxZoom());
-                                            requestLayout();
-                                        }
-                                    }
+                                    changed = changeImage(1);
                                 } else if (prev) {
-                                    if (mDrawables[0] != null) {
-                                        if (mCurrentUseDrawable != 0) {
-                                            mCurrentUseDrawable = 0;
-                                            super.setImageDrawable(mDrawables, true, null, getMaxZoom());
-                                            requestLayout();
-                                        }
-                                    }
+                                    changed = changeImage(0);
+                                }
+
+                                if (changed && isPaging()) {
+                                    // further pages need another swipe
+                                    mDownX = x;
                                 }
                             }
                         }
@@ -276,6 +325,9 @@ public class ImageViewTouch extends ImageViewTouchBase {
                     removeCallbacks(mLongPressRunnable);
                     bZoomState = false;
                 }
+                if ((action & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_CANCEL) {
+                    mScrolling = false;
+                }
                 break;
         }
 
@@ -288,9 +340,19 @@ public class ImageViewTouch extends ImageViewTouchBase {
             }
         }
 
+        updateRenderQuality();
         return true;
     }
 
+    /**
+     * Also true while the user is scrolling or scaling the image
+     */
+    @Override
+    public boolean isInteracting() {
+        return super.isInteracting() || bZoomState || mScrolling
+                || (mScaleDetector != null && mScaleDetector.isInProgress());
+    }
+
     @Override
     protected void onZoom(float scale) {
         super.onZoom(scale);
@@ -355,8 +417,8 @@ public class ImageViewTouch extends ImageViewTouchBase {
 //		if (getScale() == 1f)
 //			return false;
 
-        scrollBy(-distanceX, -distanceY);
-        invalidate();
+        mScrolling = true;
+        postScrollBy(-distanceX, -distanceY);
         return true;
     }
 
@@ -370,15 +432,165 @@ public class ImageViewTouch extends ImageViewTouchBase {
         if (mScaleDetector.isInProgress())
             return false;
 
-        float diffX = e2.getX() - e1.getX();
-        float diffY = e2.getY() - e1.getY();
+        fling(velocityX, velocityY);
+        return true;
+    }
 
-        if (Math.abs(velocityX) > 800 || Math.abs(velocityY) > 800) {
-            scrollBy(diffX / 2, diffY / 2, 300);
-            invalidate();
-            return true;
+    /**
+     * Scroll by the given distance at the next frame, together with the other
+     * MOVE events received in the meantime
+     */
+    protected void postScrollBy(float distanceX, float distanceY) {
+        mPendingTransX += distanceX;
+        mPendingTransY += distanceY;
+        mHasPendingMoves = true;
+        scheduleMoves();
+        countMoveSamples();
+    }
+
+    /**
+     * Zoom to the given scale, around the given focus point, at the next
+     * frame. Each sample is composed, in order, with the ones posted before
+     * it, so the translation of every intermediate zoom is kept
+     */
+    protected void postZoomTo(float scale, float focusX, float focusY) {
+        final float targetScale = Math.min(scale, getMaxZoom());
+        final float factor = targetScale / getPendingScale();
+        mPendingScaleFactor *= factor;
+        mPendingTransX = (mPendingTransX - focusX) * factor + focusX;
+        mPendingTransY = (mPendingTransY - focusY) * factor + focusY;
+        mPendingScale = targetScale;
+        mHasPendingScale = true;
+        mHasPendingMoves = true;
+        scheduleMoves();
+        countMoveSamples();
+    }
+
+    /**
+     * Returns the scale the view will have once the pending MOVE input is
+     * applied
+     */
+    protected float getPendingScale() {
+        return mHasPendingScale ? mPendingScale : getScale();
+    }
+
+    /**
+     * Apply the accumulated MOVE input as a single matrix update, then keep
+     * the content within the view edges as a zoom or a scroll would
+     */
+    protected void applyPendingMoves() {
+        if (!mHasPendingMoves) {
+            return;
         }
-        return false;
+
+        final boolean scaled = mHasPendingScale;
+        final float factor = mPendingScaleFactor;
+        final float transX = mPendingTransX;
+        final float transY = mPendingTransY;
+        mPendingScaleFactor = 1f;
+        mPendingTransX = 0;
+        mPendingTransY = 0;
+        mHasPendingScale = false;
+        mHasPendingMoves = false;
+
+        beginTransaction();
+        try {
+            if (scaled) {
+                syncEngine();
+                postScale(factor, 0, 0);
+            }
+            // clamped to the edges like a scrollBy, then centered
+            panBy(transX, transY);
+            if (scaled) {
+                onZoom(getScale());
+            }
+        } finally {
+            commitTransaction();
+        }
+        mMoveUpdateCount++;
+    }
+
+    /**
+     * Drop the MOVE input not applied yet: it was computed against the
+     * content being replaced
+     */
+    protected void clearPendingMoves() {
+        if (mMovesScheduled) {
+            mMovesScheduled = false;
+            removeCallbacks(mApplyMovesRunnable);
+        }
+        mPendingScaleFactor = 1f;
+        mPendingTransX = 0;
+        mPendingTransY = 0;
+        mHasPendingScale = false;
+        mHasPendingMoves = false;
+    }
+
+    /**
+     * Apply the pending MOVE input now, without waiting for the next frame
+     */
+    protected void flushPendingMoves() {
+        if (mMovesScheduled) {
+            mMovesScheduled = false;
+            removeCallbacks(mApplyMovesRunnable);
+        }
+        applyPendingMoves();
+    }
+
+    private void countMoveSamples() {
+        mMoveSampleCount += mEventSamples;
+        mEventSamples = 0;
+    }
+
+    private void scheduleMoves() {
+        if (mMovesScheduled) {
+            return;
+        }
+        mMovesScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postOnAnimationCompat(mApplyMovesRunnable);
+        } else {
+            post(mApplyMovesRunnable);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postOnAnimationCompat(Runnable action) {
+        postOnAnimation(action);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        flushPendingMoves();
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Returns the number of MOVE samples which scrolled or scaled the image,
+     * including the historical ones batched in each event
+     */
+    public long getMoveSampleCount() {
+        return mMoveSampleCount;
+    }
+
+    /**
+     * Returns the number of matrix updates produced by the MOVE samples
+     */
+    public long getMoveUpdateCount() {
+        return mMoveUpdateCount;
+    }
+
+    /**
+     * Returns how many MOVE samples, on average, have been merged in a single
+     * matrix update, or 0 if there was none yet
+     */
+    public float getMoveCoalescingRatio() {
+        return mMoveUpdateCount > 0 ? (float) mMoveSampleCount / mMoveUpdateCount : 0;
+    }
+
+    public void resetMoveStats() {
+        mMoveSampleCount = 0;
+        mMoveUpdateCount = 0;
     }
 
     /**
@@ -391,7 +603,7 @@ public class ImageViewTouch extends ImageViewTouchBase {
     public boolean canScroll(int direction, int x) {
         RectF bitmapRect = getBitmapRect();
         updateRect(bitmapRect, mScrollRect);
-        Rect imageViewRect = new Rect();
+        final Rect imageViewRect = mImageViewRect;
         boolean ret = false;
 
         getGlobalVisibleRect(imageViewRect);
@@ -402,18 +614,14 @@ public class ImageViewTouch extends ImageViewTouchBase {
                     ret = Math.abs(bitmapRect.right - imageViewRect.right) > SCROLL_DELTA_THRESHOLD;
                     if (!ret) {
                         if (mL2R) {
-                            if (mDrawables[1] != null) {
-                                if (mCurrentUseDrawable != 1) {
-                                    mEnabledScrollChangeImage = true;
-                                    return true;
-                                }
+                            if (canChangeImage(1)) {
+                                mEnabledScrollChangeImage = true;
+                                return true;
                             }
                         } else {
-                            if (mDrawables[0] != null) {
-                                if (mCurrentUseDrawable != 0) {
-                                    mEnabledScrollChangeImage = true;
-                                    return true;
-                                }
+                            if (canChangeImage(0)) {
+                                mEnabledScrollChangeImage = true;
+                                return true;
                             }
                         }
                     }
@@ -422,18 +630,14 @@ public class ImageViewTouch extends ImageViewTouchBase {
                     ret = Math.abs(bitmapRect.right - imageViewRect.right) < SCROLL_DELTA_THRESHOLD;
                     if (!ret) {
                         if (mL2R) {
-                            if (mDrawables[1] != null) {
-                                if (mCurrentUseDrawable != 1) {
-                                    mEnabledScrollChangeImage = true;
-                                    return true;
-                                }
+                            if (canChangeImage(1)) {
+                                mEnabledScrollChangeImage = true;
+                                return true;
                             }
                         } else {
-                            if (mDrawables[0] != null) {
-                                if (mCurrentUseDrawable != 0) {
-                                    mEnabledScrollChangeImage = true;
-                                    return true;
-                                }
+                            if (canChangeImage(0)) {
+                                mEnabledScrollChangeImage = true;
+                                return true;
                             }
                         }
                     }
@@ -451,18 +655,14 @@ public class ImageViewTouch extends ImageViewTouchBase {
 
                 if (!ret) {
                     if (mL2R) {
-                        if (mDrawables[0] != null) {
-                            if (mCurrentUseDrawable != 0) {
-                                mEnabledScrollChangeImage = true;
-                                return true;
-                            }
+                        if (canChangeImage(0)) {
+                            mEnabledScrollChangeImage = true;
+                            return true;
                         }
                     } else {
-                        if (mDrawables[1] != null) {
-                            if (mCurrentUseDrawable != 1) {
-                                mEnabledScrollChangeImage = true;
-                                return true;
-                            }
+                        if (canChangeImage(1)) {
+                            mEnabledScrollChangeImage = true;
+                            return true;
                         }
                     }
                 }
@@ -494,7 +694,6 @@ public class ImageViewTouch extends ImageViewTouchBase {
                     mCurrentScaleFactor = targetScale;
                     zoomTo(targetScale, e.getX(), e.getY(),
                             DEFAULT_ANIMATION_DURATION);
-                    invalidate();
                 }
             }
 
@@ -556,11 +755,10 @@ public class ImageViewTouch extends ImageViewTouchBase {
             if (mScaleEnabled) {
 //				targetScale = Math.min(getMaxZoom(),
 //						Math.max(targetScale, getMinZoom() - 0.1f));
-                zoomTo(targetScale, detector.getFocusX(), detector.getFocusY());
+                postZoomTo(targetScale, detector.getFocusX(), detector.getFocusY());
                 mCurrentScaleFactor = Math.min(getMaxZoom(),
                         Math.max(targetScale, getMinZoom() - 1.0f));
                 mDoubleTapDirection = 0;
-                invalidate();
                 return true;
             }
             return false;
@@ -1,17 +1,54 @@
 package it.sephiroth.android.library.imagezoom;
 
+import it.sephiroth.android.library.imagezoom.cache.BitmapPool;
+import it.sephiroth.android.library.imagezoom.cache.DiskCache;
+import it.sephiroth.android.library.imagezoom.cache.MemoryCache;
+import it.sephiroth.android.library.imagezoom.core.Affine;
+import it.sephiroth.android.library.imagezoom.core.FloatRect;
+import it.sephiroth.android.library.imagezoom.core.ViewportSnapshot;
+import it.sephiroth.android.library.imagezoom.core.ZoomPanAnimator;
+import it.sephiroth.android.library.imagezoom.core.ZoomPanEngine;
+import it.sephiroth.android.library.imagezoom.core.ZoomType;
 import it.sephiroth.android.library.imagezoom.easing.Cubic;
 import it.sephiroth.android.library.imagezoom.easing.Easing;
+import it.sephiroth.android.library.imagezoom.graphics.DecodePolicy;
 import it.sephiroth.android.library.imagezoom.graphics.FastBitmapDrawable;
+import it.sephiroth.android.library.imagezoom.graphics.IBitmapDrawable;
+import it.sephiroth.android.library.imagezoom.graphics.IDecodeTarget;
+import it.sephiroth.android.library.imagezoom.graphics.IPrefetchDrawable;
+import it.sephiroth.android.library.imagezoom.graphics.IRenderQualityDrawable;
+import it.sephiroth.android.library.imagezoom.graphics.ISampledDrawable;
+import it.sephiroth.android.library.imagezoom.graphics.IViewportDrawable;
+import it.sephiroth.android.library.imagezoom.graphics.RenderQuality;
+import it.sephiroth.android.library.imagezoom.graphics.RenderQualityPolicy;
+import it.sephiroth.android.library.imagezoom.graphics.TiledBitmapDrawable;
+import it.sephiroth.android.library.imagezoom.loader.ImageLoader;
+import it.sephiroth.android.library.imagezoom.loader.ImageSource;
+import it.sephiroth.android.library.imagezoom.loader.PageProvider;
+import it.sephiroth.android.library.imagezoom.loader.PageRing;
+import it.sephiroth.android.library.imagezoom.loader.WorkScheduler;
 import it.sephiroth.android.library.imagezoom.utils.IDisposable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
+import android.graphics.Point;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.view.Choreographer;
 import android.widget.ImageView;
+import android.widget.OverScroller;
 
 /**
  * Base View to manage image zoom/scrool/pinch operations
@@ -19,26 +56,30 @@ import android.widget.ImageView;
  * @author alessandro
  * 
  */
-public class ImageViewTouchBase extends ImageView implements IDisposable {
-
-	private static enum IMAGE_ZOOM_TYPE {
-		ZOOM_TYPE_FIT_TO_SCRREN_SMALL,
-		ZOOM_TYPE_FIT_TO_SCRREN_BIG, 
-		ZOOM_TYPE_FIT_TO_WIDTH, 
-		ZOOM_TYPE_FIT_TO_HEIGHT, 
-		ZOOM_TYPE_FILL_TO_SCRREN
-	};
+public class ImageViewTouchBase extends ImageView implements IDisposable, IDecodeTarget {
 
 	public interface OnBitmapChangedListener {
 
 		void onBitmapChanged(Drawable drawable);
 	};
 
+	public interface OnImageLoadListener {
+
+		void onImageLoaded(ImageSource source, Drawable drawable);
+
+		void onImageLoadFailed(ImageSource source, Throwable error);
+	};
+
 	protected static final float MIN_ZOOM = 0.9f;
 	protected Easing mEasing = new Cubic();
-	protected Matrix mSuppMatrix = new Matrix();
+	/**
+	 * Zoom and pan math. The engine holds the support (user) transform, see
+	 * {@link #getSupportMatrix()}
+	 */
+	protected final ZoomPanEngine mEngine = new ZoomPanEngine();
+	private final Matrix mSupportMatrix = new Matrix();
 	
-	protected Matrix[] mBaseMatrixX = {new Matrix(), new Matrix()};
+	protected Affine[] mBaseMatrixX = {new Affine(), new Affine()};
 	protected Drawable[] mDrawables = {null, null};
 	protected int mCurrentUseDrawable = 0;
 	
@@ -47,6 +88,7 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 	protected float mMaxZoom;
 	protected float mMinZoom = 0.1f;
 	protected final Matrix mDisplayMatrix = new Matrix();
+	protected final Affine mDisplayAffine = new Affine();
 	protected final float[] mMatrixValues = new float[9];
 	protected int mThisWidth = -1, mThisHeight = -1;
 
@@ -54,13 +96,72 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
     final protected float MAX_ZOOM = 10.0f;
 	final protected int DEFAULT_ANIMATION_DURATION = 200;
 
-	protected IMAGE_ZOOM_TYPE mImageZoomType = IMAGE_ZOOM_TYPE.ZOOM_TYPE_FIT_TO_SCRREN_SMALL;
+	/** default time, in ms, the viewport is projected ahead while moving */
+	public static final long DEFAULT_PREFETCH_LOOKAHEAD = 300;
+
+	/** min time, in ms, between two prefetch updates of the same motion */
+	protected static final long PREFETCH_INTERVAL = 100;
+
+	protected ZoomType mImageZoomType = ZoomType.FIT_TO_SCREEN_SMALL;
 
 	protected RectF mBitmapRect = new RectF();
 	protected RectF mCenterRect = new RectF();
 	protected RectF mScrollRect = new RectF();
+	private final FloatRect mClampBitmapRect = new FloatRect();
+	private final FloatRect mClampScrollRect = new FloatRect();
+
+	protected ImageLoader mImageLoader;
+	protected WorkScheduler mWorkScheduler;
+	protected BitmapPool mBitmapPool;
+	protected MemoryCache mMemoryCache;
+	protected boolean mPinDisplayedImage = true;
+	protected final ArrayList<Bitmap> mPinnedBitmaps = new ArrayList<Bitmap>();
+
+	protected PageRing mPageRing;
+	protected Drawable mPreviewDrawable;
+	protected int mPrefetchDistance = 1;
+	protected final ArrayList<Drawable> mRetiredDrawables = new ArrayList<Drawable>();
+	protected final ArrayList<TiledBitmapDrawable> mTiledDrawables = new ArrayList<TiledBitmapDrawable>();
+	protected int mTiledGeneration;
+
+	protected RenderQualityPolicy mRenderQualityPolicy = RenderQualityPolicy.DEFAULT;
+	private RenderQuality mAppliedRenderQuality;
+	private Drawable mRenderQualityDrawable;
+	protected int mRunningAnimations;
+	protected final TransformAnimator mAnimator = new TransformAnimator();
+	protected int mFlingOverScroll = 0;
+	protected long mPrefetchLookahead = DEFAULT_PREFETCH_LOOKAHEAD;
+	protected final Matrix mPredictedMatrix = new Matrix();
+
+	/**
+	 * Last published viewport. Written on the UI thread only, read from any
+	 * thread
+	 */
+	protected final AtomicReference<ViewportSnapshot> mViewportSnapshot =
+			new AtomicReference<ViewportSnapshot>(ViewportSnapshot.EMPTY);
+	private long mViewportSequence;
+	// the inputs of the last snapshot which are not motion
+	private final Affine mSnapshotBaseMatrix = new Affine();
+	private Drawable mSnapshotDrawable;
+	protected int mTransactionDepth;
+	protected boolean mMatrixChanged;
+
+	/**
+	 * Inputs of the base matrix at the last layout pass. A layout pass which
+	 * doesn't change them does no transform work
+	 */
+	private boolean mLayoutValid;
+	private int mLayoutWidth, mLayoutHeight;
+	private Drawable mLayoutDrawable;
+	private int mLayoutDrawableWidth, mLayoutDrawableHeight;
+	private int mLayoutUseDrawable;
+	private ZoomType mLayoutZoomType;
+	private float mLayoutMaxZoom;
+	private int mLayoutCount;
+	private int mSkippedLayoutCount;
 
 	private OnBitmapChangedListener mListener;
+	private OnImageLoadListener mImageLoadListener;
 
 	public ImageViewTouchBase(Context context) {
 		super(context);
@@ -76,8 +177,17 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 		mListener = listener;
 	}
 
+	public void setOnImageLoadListener(OnImageLoadListener listener) {
+		mImageLoadListener = listener;
+	}
+
 	protected void init() {
 		setScaleType(ImageView.ScaleType.MATRIX);
+		mImageLoader = new ImageLoader(getContext());
+		mWorkScheduler = new WorkScheduler();
+		mImageLoader.setCacheWriteExecutor(mWorkScheduler.getExecutor(WorkScheduler.Priority.IDLE));
+		setBitmapPool(BitmapPool.getDefault());
+		setMemoryCache(MemoryCache.getDefault());
 	}
 
 	public void clear() {
@@ -97,70 +207,256 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 
 	public void setFitToScreen(boolean bSmall) {
 		if (bSmall) {
-			if (mImageZoomType != IMAGE_ZOOM_TYPE.ZOOM_TYPE_FIT_TO_SCRREN_SMALL) {
-				mImageZoomType = IMAGE_ZOOM_TYPE.ZOOM_TYPE_FIT_TO_SCRREN_SMALL;
-				mSuppMatrix.reset();
+			if (mImageZoomType != ZoomType.FIT_TO_SCREEN_SMALL) {
+				mImageZoomType = ZoomType.FIT_TO_SCREEN_SMALL;
+				resetSupportMatrix();
 				requestLayout();
 			}
 		} else {
-			if (mImageZoomType != IMAGE_ZOOM_TYPE.ZOOM_TYPE_FIT_TO_SCRREN_BIG) {
-				mImageZoomType = IMAGE_ZOOM_TYPE.ZOOM_TYPE_FIT_TO_SCRREN_BIG;
-				mSuppMatrix.reset();
+			if (mImageZoomType != ZoomType.FIT_TO_SCREEN_BIG) {
+				mImageZoomType = ZoomType.FIT_TO_SCREEN_BIG;
+				resetSupportMatrix();
 				requestLayout();
 			}
 		}
 	}
 
 	public void setFitToWidth() {
-		if (mImageZoomType != IMAGE_ZOOM_TYPE.ZOOM_TYPE_FIT_TO_WIDTH) {
-			mImageZoomType = IMAGE_ZOOM_TYPE.ZOOM_TYPE_FIT_TO_WIDTH;
-			mSuppMatrix.reset();
+		if (mImageZoomType != ZoomType.FIT_TO_WIDTH) {
+			mImageZoomType = ZoomType.FIT_TO_WIDTH;
+			resetSupportMatrix();
 			requestLayout();
 		}
 	}
 
 	public void setFitToHeight() {
-		if (mImageZoomType != IMAGE_ZOOM_TYPE.ZOOM_TYPE_FIT_TO_HEIGHT) {
-			mImageZoomType = IMAGE_ZOOM_TYPE.ZOOM_TYPE_FIT_TO_HEIGHT;
-			mSuppMatrix.reset();
+		if (mImageZoomType != ZoomType.FIT_TO_HEIGHT) {
+			mImageZoomType = ZoomType.FIT_TO_HEIGHT;
+			resetSupportMatrix();
 			requestLayout();
 		}
 	}
 
 	public void setFillScreen() {
-		if (mImageZoomType != IMAGE_ZOOM_TYPE.ZOOM_TYPE_FILL_TO_SCRREN) {
-			mImageZoomType = IMAGE_ZOOM_TYPE.ZOOM_TYPE_FILL_TO_SCRREN;
-			mSuppMatrix.reset();
+		if (mImageZoomType != ZoomType.FILL_TO_SCREEN) {
+			mImageZoomType = ZoomType.FILL_TO_SCREEN;
+			resetSupportMatrix();
 			requestLayout();
 		}
 	}
 	
 	public boolean goRightImage() {
-		if (mDrawables[0] == null) {
+		return changeImage(0);
+	}
+	
+	public boolean goLeftImage() {
+		return changeImage(1);
+	}
+
+	/**
+	 * Returns true if the image at the given index (0 the right one, 1 the
+	 * left one) is ready to be displayed instead of the current one. When a
+	 * {@link PageProvider} is set, 0 is the previous page and 1 the next one.
+	 */
+	protected boolean canChangeImage(int index) {
+		if (mPageRing != null) {
+			return mPageRing.isReady(getCurrentPage() + (index == 1 ? 1 : -1));
+		}
+		return mDrawables[index] != null && mCurrentUseDrawable != index;
+	}
+
+	/**
+	 * Display the image at the given index
+	 * 
+	 * @see #canChangeImage(int)
+	 */
+	protected boolean changeImage(int index) {
+		if (!canChangeImage(index)) {
 			return false;
 		}
-		if (mCurrentUseDrawable != 0) {
-			mCurrentUseDrawable = 0;
-			setImageDrawable(mDrawables, true, null, getMaxZoom());	
-			requestLayout();
-			return true;
+
+		if (mPageRing != null) {
+			return showPage(getCurrentPage() + (index == 1 ? 1 : -1));
 		}
-		return false;
+
+		mCurrentUseDrawable = index;
+		setImageDrawable(mDrawables, true, null, getMaxZoom());
+		requestLayout();
+		return true;
 	}
-	
-	public boolean goLeftImage() {
-		if (mDrawables[1] == null) {
+
+	/**
+	 * Number of pages decoded in advance on each side of the current one when
+	 * a {@link PageProvider} is used. Must be called before
+	 * {@link #setPageProvider(PageProvider, int)}
+	 */
+	public void setPrefetchDistance(int distance) {
+		mPrefetchDistance = Math.max(0, distance);
+	}
+
+	/**
+	 * Display the pages of the provider, starting from the given one. The
+	 * neighbour pages are decoded in background (see
+	 * {@link #setPrefetchDistance(int)}) and their base matrix computed in
+	 * advance, so changing page doesn't need any work on the UI thread.
+	 */
+	public void setPageProvider(PageProvider provider, int page) {
+		cancelLoading();
+		stopPaging();
+		mPreviewDrawable = null;
+
+		for (int i = 0; i < mDrawables.length; i++) {
+			setDrawableAt(i, null);
+			mBaseMatrixX[i].reset();
+		}
+		mCurrentUseDrawable = 0;
+
+		if (provider == null) {
+			setImageDrawable(null, true, null, -1);
+			return;
+		}
+
+		mPageRing = new PageRing(getContext(), provider, mPrefetchDistance, this, mPageCallback);
+		mPageRing.setExecutors(mImageLoader.getExecutor(),
+				mWorkScheduler.getExecutor(WorkScheduler.Priority.BACKGROUND));
+		mPageRing.setCacheWriteExecutor(mImageLoader.getCacheWriteExecutor());
+		mPageRing.setCaches(mBitmapPool, mMemoryCache, getDiskCache());
+		mPageRing.setDecodePolicy(getDecodePolicy());
+		showPage(page);
+	}
+
+	public PageProvider getPageProvider() {
+		return mPageRing != null ? mPageRing.getProvider() : null;
+	}
+
+	public boolean isPaging() {
+		return mPageRing != null;
+	}
+
+	public int getCurrentPage() {
+		return mPageRing != null ? mPageRing.getCurrentPage() : -1;
+	}
+
+	public int getPageCount() {
+		return mPageRing != null ? mPageRing.getPageCount() : 0;
+	}
+
+	/**
+	 * Move to the given page. If the page has already been decoded it's
+	 * displayed immediately, otherwise as soon as it's ready
+	 * 
+	 * @return false if there's no such page
+	 */
+	public boolean showPage(int page) {
+		if (mPageRing == null || !mPageRing.hasPage(page)) {
 			return false;
-		}		
-		if (mCurrentUseDrawable != 1) {
-			mCurrentUseDrawable = 1;
-			setImageDrawable(mDrawables, true, null, getMaxZoom());	
-			requestLayout();
-			return true;
 		}
-		return false;
+
+		mPageRing.setCurrentPage(page);
+		PageRing.Slot slot = mPageRing.getSlot(page);
+		if (slot != null && slot.isReady()) {
+			displayPage(slot);
+		}
+		return true;
+	}
+
+	public boolean showNextPage() {
+		return showPage(getCurrentPage() + 1);
+	}
+
+	public boolean showPreviousPage() {
+		return showPage(getCurrentPage() - 1);
+	}
+
+	/**
+	 * Leave the paging mode, releasing all the pages
+	 */
+	protected void stopPaging() {
+		if (mPageRing == null) {
+			return;
+		}
+
+		PageRing ring = mPageRing;
+		mPageRing = null;
+
+		// the ring owns its drawables
+		for (int i = 0; i < mDrawables.length; i++) {
+			mDrawables[i] = null;
+		}
+		ring.clear();
+	}
+
+	protected void computePageBaseMatrix(PageRing.Slot slot) {
+		final Drawable drawable = slot.getDrawable();
+		if (drawable == null || getWidth() <= 0 || getHeight() <= 0) {
+			return;
+		}
+
+		float maxZoom = getDefaultMaxZoom() > 0 ? getDefaultMaxZoom()
+				: maxZoom(drawable, getWidth(), getHeight());
+		getProperBaseMatrixInitial(getWidth(), getHeight(),
+				drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(),
+				maxZoom, slot.getBaseMatrix());
+		slot.setMaxZoom(maxZoom);
+		slot.setBaseMatrixValid(true);
+	}
+
+	/**
+	 * Swap the displayed page with an already decoded one
+	 */
+	protected void displayPage(PageRing.Slot slot) {
+		if (!slot.isBaseMatrixValid()) {
+			computePageBaseMatrix(slot);
+		}
+
+		final Drawable drawable = slot.getDrawable();
+		mDrawables[0] = drawable;
+		mDrawables[1] = null;
+		mCurrentUseDrawable = 0;
+		mBaseMatrixX[0].set(slot.getBaseMatrix());
+		mMaxZoom = slot.getMaxZoom();
+		invalidateLayoutState();
+
+		super.setImageDrawable(drawable);
+		releaseRetiredDrawables();
+
+		resetSupportMatrix();
+		setImageMatrix(getImageViewMatrix());
+		onBitmapChanged(drawable);
 	}
 
+	private final PageRing.Callback mPageCallback = new PageRing.Callback() {
+
+		@Override
+		public void onPageLoaded(PageRing ring, PageRing.Slot slot) {
+			if (ring != mPageRing) {
+				return;
+			}
+
+			computePageBaseMatrix(slot);
+			if (slot.getPage() == ring.getCurrentPage() && getDrawable() != slot.getDrawable()) {
+				displayPage(slot);
+			}
+		}
+
+		@Override
+		public void onPageLoadFailed(PageRing ring, int page, Throwable error) {
+			if (mImageLoadListener != null) {
+				mImageLoadListener.onImageLoadFailed(ring.getProvider().getPageSource(page), error);
+			}
+		}
+
+		@Override
+		public void onPageReleased(PageRing ring, Drawable drawable) {
+			if (isDrawableInUse(drawable)) {
+				// still on screen, release it once replaced
+				mRetiredDrawables.add(drawable);
+			} else {
+				onDrawableReleased(drawable);
+			}
+		}
+	};
+
 	public void setMinZoom(float value) {
 		mMinZoom = value;
 	}
@@ -171,20 +467,104 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 		super.onLayout(changed, left, top, right, bottom);
 		mThisWidth = right - left;
 		mThisHeight = bottom - top;
+		mLayoutCount++;
 
 		Runnable r = mOnLayoutRunnable;
 		if (r != null) {
 			mOnLayoutRunnable = null;
 			r.run();
 		}
+
+		if (isLayoutValid()) {
+			mSkippedLayoutCount++;
+			return;
+		}
+
+		final boolean sizeChanged = !mLayoutValid || mLayoutWidth != mThisWidth
+				|| mLayoutHeight != mThisHeight;
+		if (mPageRing != null) {
+			PageRing.Slot[] slots = mPageRing.getSlots();
+			for (int i = 0; i < slots.length; i++) {
+				if (sizeChanged || !slots[i].isBaseMatrixValid()) {
+					computePageBaseMatrix(slots[i]);
+				}
+			}
+		}
+
 		if (getDrawable() != null) {
 			
 			getProperBaseMatrixInitial(getDrawable(), mBaseMatrixX[mCurrentUseDrawable]);
 			setMinZoom(1.0f);
 
-			setImageMatrix(getImageViewMatrix());
-			zoomTo(getScale());
+			beginTransaction();
+			try {
+				updateImageMatrix();
+				zoomTo(getScale());
+			} finally {
+				commitTransaction();
+			}
+		}
+		saveLayoutState();
+	}
+
+	/**
+	 * Returns true if none of the inputs of the base matrix changed since the
+	 * last layout pass
+	 */
+	protected boolean isLayoutValid() {
+		if (!mLayoutValid || mLayoutWidth != mThisWidth || mLayoutHeight != mThisHeight
+				|| mLayoutUseDrawable != mCurrentUseDrawable
+				|| mLayoutZoomType != mImageZoomType || mLayoutMaxZoom != mMaxZoom) {
+			return false;
+		}
+		final Drawable drawable = getDrawable();
+		if (drawable != mLayoutDrawable) {
+			return false;
 		}
+		return drawable == null || (drawable.getIntrinsicWidth() == mLayoutDrawableWidth
+				&& drawable.getIntrinsicHeight() == mLayoutDrawableHeight);
+	}
+
+	private void saveLayoutState() {
+		final Drawable drawable = getDrawable();
+		mLayoutWidth = mThisWidth;
+		mLayoutHeight = mThisHeight;
+		mLayoutDrawable = drawable;
+		mLayoutDrawableWidth = drawable != null ? drawable.getIntrinsicWidth() : 0;
+		mLayoutDrawableHeight = drawable != null ? drawable.getIntrinsicHeight() : 0;
+		mLayoutUseDrawable = mCurrentUseDrawable;
+		mLayoutZoomType = mImageZoomType;
+		mLayoutMaxZoom = mMaxZoom;
+		mLayoutValid = true;
+	}
+
+	/**
+	 * Force the next layout pass to recompute the base matrix and to center
+	 * the image, for instance after the support matrix has been set directly
+	 */
+	protected void invalidateLayoutState() {
+		mLayoutValid = false;
+		mLayoutDrawable = null;
+	}
+
+	/**
+	 * Returns the number of layout passes of this view
+	 */
+	public int getLayoutCount() {
+		return mLayoutCount;
+	}
+
+	/**
+	 * Returns the number of layout passes which did no transform work because
+	 * their inputs didn't change
+	 */
+	public int getSkippedLayoutCount() {
+		return mSkippedLayoutCount;
+	}
+
+	public void resetLayoutStats() {
+		mLayoutCount = 0;
+		mSkippedLayoutCount = 0;
 	}
 
 	@Override
@@ -246,11 +626,26 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 	public void setImageBitmap(final Bitmap bitmap, final boolean reset,
 			Matrix matrix, float maxZoom) {
 
+		setImageBitmapDrawable(bitmap != null ? new FastBitmapDrawable(bitmap) : null,
+				reset, matrix, maxZoom);
+	}
+
+	/**
+	 * @see #setImageBitmap(Bitmap, boolean, Matrix, float)
+	 */
+	protected void setImageBitmapDrawable(FastBitmapDrawable drawable, boolean reset,
+			Matrix matrix, float maxZoom) {
+		cancelLoading();
+		stopPaging();
+		mPreviewDrawable = null;
 		mCurrentUseDrawable = 0;
-		if (bitmap != null) {
-			mDrawables[0] = new FastBitmapDrawable(bitmap);
+		if (drawable != null) {
+			setDrawableAt(0, drawable);
 			setImageDrawable(mDrawables, reset, matrix, maxZoom);
 		} else {
+			for (int i = 0; i < mDrawables.length; i++) {
+				setDrawableAt(i, null);
+			}
 			setImageDrawable(null, reset, matrix, maxZoom);
 		}
 	}
@@ -264,18 +659,21 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 	}
 
     public void setImageBitmap2(final Bitmap rightBitmap, final Bitmap leftBitmap, boolean reset, int useBitmap) {
+        cancelLoading();
+        stopPaging();
+        mPreviewDrawable = null;
         int i = 0;
         for (i = 0;i < mDrawables.length; i++) {
-            mDrawables[i] = null;
+            setDrawableAt(i, null);
             mBaseMatrixX[i].reset();
         }
 
         if (rightBitmap != null) {
-            mDrawables[0] = new FastBitmapDrawable(rightBitmap);
+            setDrawableAt(0, new FastBitmapDrawable(rightBitmap));
         }
 
         if (leftBitmap != null) {
-            mDrawables[1] = new FastBitmapDrawable(leftBitmap);
+            setDrawableAt(1, new FastBitmapDrawable(leftBitmap));
         }
 
         mCurrentUseDrawable = useBitmap;
@@ -284,114 +682,612 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
         forceLayout();
     }
 
-	@Override
-	public void setImageDrawable(Drawable drawable) {
-		mCurrentUseDrawable = 0;
-		mDrawables[0] = drawable;
-		setImageDrawable(mDrawables, true, null, -1);
+	/**
+	 * Decode the image in background and display it once ready. The image is
+	 * decoded at the size returned by {@link #getDecodeSize(int, int, Point)}.
+	 * Any previous pending request is cancelled, as well as calling any of the
+	 * setImage* methods or {@link #dispose()}.<br />
+	 * Decoding starts immediately, even if the view has not been laid out yet.
+	 * 
+	 * @param source
+	 *            - the image to load
+	 * @see #setImageSource(ImageSource, boolean)
+	 */
+	public void setImageSource(ImageSource source) {
+		setImageSource(source, true);
 	}
 
-	public void setImageDrawable(final Drawable[] drawables, final boolean reset,
-			final Matrix initial_matrix, final float maxZoom) {
+	/**
+	 * @param source
+	 *            - the image to load
+	 * @param reset
+	 *            - if true the image bounds will be recreated once the image
+	 *            is loaded, otherwise the current {@link Matrix} is kept
+	 * @see #setImageSource(ImageSource)
+	 */
+	public void setImageSource(final ImageSource source, final boolean reset) {
+		stopPaging();
+		mPreviewDrawable = null;
+		loadImageSource(source, reset);
+	}
 
-		final int viewWidth = getWidth();
+	/**
+	 * Display a low resolution placeholder (for instance the thumbnail of a
+	 * grid) immediately, then decode the image in background. The placeholder
+	 * is stretched to the size of the decoded image, if already known, or to
+	 * the given size. Once decoded, the image replaces the placeholder without
+	 * changing the current zoom and pan, even during a gesture.
+	 * 
+	 * @param source
+	 *            - the image to load
+	 * @param placeholder
+	 *            - the bitmap displayed while loading. It's not recycled by
+	 *            the view
+	 * @param width
+	 *            - the width of the full image, or -1 if unknown
+	 * @param height
+	 *            - the height of the full image, or -1 if unknown
+	 * @see #setImageSource(ImageSource)
+	 */
+	public void setImageSource(ImageSource source, Bitmap placeholder, int width, int height) {
+		if (placeholder == null) {
+			setImageSource(source, true);
+			return;
+		}
 
-		if (viewWidth <= 0) {
-			mOnLayoutRunnable = new Runnable() {
+		Point size = new Point(width, height);
+		if (!mImageLoader.getDecodedSize(source, this, size) && (width <= 0 || height <= 0)) {
+			size.set(placeholder.getWidth(), placeholder.getHeight());
+		}
 
-				@Override
-				public void run() {
-					setImageDrawable(drawables, reset, initial_matrix, maxZoom);
-				}
-			};
-			return;
+		FastBitmapDrawable drawable = new FastBitmapDrawable(placeholder, size.x, size.y);
+		Point sourceSize = new Point();
+		if (source.getSize(sourceSize)) {
+			drawable.setSourceSize(sourceSize.x, sourceSize.y);
 		}
 
-		_setImageDrawable(drawables, reset, initial_matrix, maxZoom);
+		// cancels any pending request
+		setImageDrawable(drawable);
+		mPreviewDrawable = mDrawables[0];
+		loadImageSource(source, true);
 	}
 
-	protected void _setImageDrawable(final Drawable[] drawable,
-			final boolean reset, final Matrix initial_matrix,
-			final float maxZoom) {
+	public void setImageSource(ImageSource source, Bitmap placeholder) {
+		setImageSource(source, placeholder, -1, -1);
+	}
 
-		if (drawable != null) {
-			int i = 0;
-			for (i = 0; i < mBaseMatrixX.length; i++) {
-				if (drawable[i] != null) {
-					getProperBaseMatrixInitial(drawable[i], mBaseMatrixX[i]);
+	protected void loadImageSource(final ImageSource source, final boolean reset) {
+		mTiledGeneration++;
+		mImageLoader.load(source, this, new ImageLoader.Callback() {
+
+			@Override
+			public void onImageLoaded(ImageSource source, Bitmap bitmap) {
+				if (mPinDisplayedImage && mMemoryCache != null && mMemoryCache.pin(bitmap)) {
+					mPinnedBitmaps.add(bitmap);
 				}
-			}
 
-			super.setImageDrawable(drawable[mCurrentUseDrawable]);
+				final FastBitmapDrawable drawable = ImageLoader.newDrawable(source, bitmap);
+				final Drawable preview = mPreviewDrawable;
+				mPreviewDrawable = null;
+				if (preview != null && preview == getDrawable() && preview == mDrawables[0]) {
+					replacePreview(preview, drawable);
+				} else {
+					setImageBitmapDrawable(drawable, reset, null, -1);
+				}
+				if (mImageLoadListener != null) {
+					mImageLoadListener.onImageLoaded(source, mDrawables[0]);
+				}
+			}
 
-		} else {
-			int i = 0;
-			for (i = 0; i < mBaseMatrixX.length; i++) {
-				mBaseMatrixX[i].reset();
+			@Override
+			public void onImageLoadFailed(ImageSource source, Throwable error) {
+				mPreviewDrawable = null;
+				if (mImageLoadListener != null) {
+					mImageLoadListener.onImageLoadFailed(source, error);
+				}
 			}
-			super.setImageDrawable(null);
-		}
+		});
+	}
 
-		if (reset) {
-			mSuppMatrix.reset();
-		}
+	/**
+	 * Display a very large image with a {@link TiledBitmapDrawable}. The
+	 * drawable is opened in background, on the decode executor, using a pool
+	 * of region decoders sized from the available cores and the heap (see
+	 * {@link it.sephiroth.android.library.imagezoom.graphics.RegionDecoderPool#getDefaultSize(long)}).
+	 * The preview and the tiles are decoded on the visible work executor of
+	 * the {@link #getWorkScheduler()}, as many in parallel as it allows. The
+	 * drawable is disposed by the view once replaced.<br />
+	 * Requires API level 10.
+	 * 
+	 * @param file
+	 *            - the image to load
+	 * @param reset
+	 *            - if true the image bounds will be recreated once the image
+	 *            is loaded, otherwise the current {@link Matrix} is kept
+	 */
+	public void setImageTiled(final File file, final boolean reset) {
+		stopPaging();
+		cancelLoading();
+		mPreviewDrawable = null;
 
-		if (initial_matrix != null) {
-			mSuppMatrix = new Matrix(initial_matrix);
-		}
+		final ImageSource source = ImageSource.fromFile(file);
+		final int generation = mTiledGeneration;
+		mImageLoader.getExecutor().execute(new Runnable() {
 
-		setImageMatrix(getImageViewMatrix());
+			@Override
+			public void run() {
+				TiledBitmapDrawable drawable = null;
+				Throwable error = null;
+				try {
+					drawable = new TiledBitmapDrawable(file.getPath(),
+							mWorkScheduler.getExecutor(WorkScheduler.Priority.VISIBLE));
+				} catch (Throwable t) {
+					error = t;
+				}
+				final TiledBitmapDrawable result = drawable;
+				final Throwable failure = error;
 
-		if (maxZoom < 1)
-			mMaxZoom = maxZoom();
-		else
-			mMaxZoom = maxZoom;
+				mHandler.post(new Runnable() {
 
-        if (getDefaultMaxZoom() > 0) {
-            mMaxZoom = getDefaultMaxZoom();
-        }
+					@Override
+					public void run() {
+						onTiledDrawableLoaded(generation, source, result, failure, reset);
+					}
+				});
+			}
+		});
+	}
+
+	public void setImageTiled(File file) {
+		setImageTiled(file, true);
+	}
+
+	protected void onTiledDrawableLoaded(int generation, ImageSource source, TiledBitmapDrawable drawable,
+			Throwable error, boolean reset) {
+		if (generation != mTiledGeneration) {
+			// cancelled meanwhile
+			if (drawable != null) {
+				drawable.dispose();
+			}
+			return;
+		}
 
 		if (drawable == null) {
-			onBitmapChanged(null);
-		} else {
-			onBitmapChanged(drawable[mCurrentUseDrawable]);
+			if (mImageLoadListener != null) {
+				mImageLoadListener.onImageLoadFailed(source, error);
+			}
+			return;
 		}
-	}	
-	
 
-	protected void onBitmapChanged(final Drawable bitmap) {
-		if (mListener != null) {
-			mListener.onBitmapChanged(bitmap);
+		mTiledDrawables.add(drawable);
+		mCurrentUseDrawable = 0;
+		setDrawableAt(0, drawable);
+		setImageDrawable(mDrawables, reset, null, -1);
+		if (mImageLoadListener != null) {
+			mImageLoadListener.onImageLoaded(source, drawable);
 		}
 	}
 
 	/**
-	 * compute the max allowed zoom fator
-	 * 
-	 * @return
+	 * Cancel the pending {@link #setImageSource(ImageSource)} and
+	 * {@link #setImageTiled(File)} requests
 	 */
-	protected float maxZoom() {
-		final Drawable drawable = getDrawable();
+	protected void cancelLoading() {
+		mImageLoader.cancel();
+		mTiledGeneration++;
+	}
+
+	/**
+	 * Swap the displayed placeholder with the full image. The base matrix is
+	 * scaled by the ratio of the two intrinsic sizes, so the image keeps the
+	 * same position on screen and the support matrix is left untouched
+	 */
+	protected void replacePreview(Drawable preview, Drawable drawable) {
+		final float sx = (float) preview.getIntrinsicWidth() / drawable.getIntrinsicWidth();
+		final float sy = (float) preview.getIntrinsicHeight() / drawable.getIntrinsicHeight();
+		mBaseMatrixX[0].preScale(sx, sy);
+
+		setDrawableAt(0, drawable);
+		super.setImageDrawable(drawable);
+		releaseRetiredDrawables();
+
+		// the pre-scaled base matrix is the one for the new drawable: the
+		// layout requested by the size change must not recompute it
+		if (mLayoutValid) {
+			saveLayoutState();
+		}
+
+		setImageMatrix(getImageViewMatrix());
+
+		// the preview size may not be the source one
+		if (getDefaultMaxZoom() <= 0) {
+			mMaxZoom = maxZoom();
+		}
+		onBitmapChanged(drawable);
+	}
+
+	/**
+	 * Set the executor used by {@link #setImageSource(ImageSource)} to decode
+	 * the images. If null the shared default executor is used.
+	 */
+	public void setDecodeExecutor(Executor executor) {
+		mImageLoader.setExecutor(executor);
+	}
+
+	/**
+	 * Returns the scheduler of the background work which is not needed for
+	 * what is on screen: neighbour pages, pyramid levels and disk cache
+	 * writes. Use {@link WorkScheduler#setExecutor(WorkScheduler.Priority, Executor)}
+	 * to run it on the app executors
+	 */
+	public WorkScheduler getWorkScheduler() {
+		return mWorkScheduler;
+	}
+
+	/**
+	 * Set the pool used to decode new images and which receives back the
+	 * bitmaps decoded by the library once they are replaced. Pass null to
+	 * disable bitmap reuse.
+	 */
+	public void setBitmapPool(BitmapPool pool) {
+		mBitmapPool = pool;
+		mImageLoader.setBitmapPool(pool);
+	}
+
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * Set the memory cache consulted by {@link #setImageSource(ImageSource)}
+	 * before decoding. Pass null to disable caching. Must be called before
+	 * loading any image.
+	 */
+	public void setMemoryCache(MemoryCache cache) {
+		mMemoryCache = cache;
+		mImageLoader.setMemoryCache(cache);
+	}
+
+	public MemoryCache getMemoryCache() {
+		return mMemoryCache;
+	}
+
+	/**
+	 * Set the disk cache used by {@link #setImageSource(ImageSource)} to store
+	 * the decoded images, so they can be read back without decoding them
+	 * again. Disabled by default.
+	 * 
+	 * @see DiskCache#open(Context, long)
+	 */
+	public void setDiskCache(DiskCache cache) {
+		mImageLoader.setDiskCache(cache);
+	}
+
+	public DiskCache getDiskCache() {
+		return mImageLoader.getDiskCache();
+	}
+
+	/**
+	 * Set the policy used by {@link #setImageSource(ImageSource)} to choose
+	 * the pixel format of the decoded images. Defaults to
+	 * {@link DecodePolicy#QUALITY}, single images can override it with
+	 * {@link ImageSource#setDecodePolicy(DecodePolicy)}
+	 */
+	public void setDecodePolicy(DecodePolicy policy) {
+		mImageLoader.setDecodePolicy(policy);
+	}
+
+	public DecodePolicy getDecodePolicy() {
+		return mImageLoader.getDecodePolicy();
+	}
+
+	/**
+	 * If true (the default) the images loaded through
+	 * {@link #setImageSource(ImageSource)} are pinned in the memory cache while
+	 * displayed, so they are never evicted
+	 */
+	public void setPinDisplayedImage(boolean value) {
+		mPinDisplayedImage = value;
+	}
+
+	/**
+	 * Replace the drawable in the given slot. The old one is released once
+	 * it's no more displayed
+	 */
+	protected void setDrawableAt(int index, Drawable drawable) {
+		Drawable old = mDrawables[index];
+		if (old != null && old != drawable) {
+			mRetiredDrawables.add(old);
+		}
+		mDrawables[index] = drawable;
+
+		if (drawable instanceof FastBitmapDrawable
+				&& ((FastBitmapDrawable) drawable).getPyramidExecutor() == null) {
+			// the levels are only an optimization, build them when idle
+			((FastBitmapDrawable) drawable).setPyramidExecutor(
+					mWorkScheduler.getExecutor(WorkScheduler.Priority.IDLE));
+		}
+	}
+
+	/**
+	 * Give back to the pool the bitmaps of the replaced drawables which are
+	 * not displayed anymore
+	 */
+	protected void releaseRetiredDrawables() {
+		if (mRetiredDrawables.isEmpty()) {
+			return;
+		}
+
+		for (int i = 0; i < mRetiredDrawables.size(); i++) {
+			Drawable drawable = mRetiredDrawables.get(i);
+			if (!isDrawableInUse(drawable)) {
+				onDrawableReleased(drawable);
+			}
+		}
+		mRetiredDrawables.clear();
+	}
+
+	protected boolean isDrawableInUse(Drawable drawable) {
+		for (int i = 0; i < mDrawables.length; i++) {
+			if (mDrawables[i] == drawable) {
+				return true;
+			}
+		}
+		return getDrawable() == drawable;
+	}
+
+	protected boolean isBitmapInUse(Bitmap bitmap) {
+		for (int i = 0; i < mDrawables.length; i++) {
+			Drawable current = mDrawables[i];
+			if (current instanceof IBitmapDrawable
+					&& ((IBitmapDrawable) current).getBitmap() == bitmap) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Called when a drawable is no more used by this view. Its bitmap is
+	 * released from the memory cache or, if not cached, given back to the
+	 * bitmap pool
+	 */
+	protected void onDrawableReleased(final Drawable drawable) {
+		if (mTiledDrawables.remove(drawable)) {
+			// opened by setImageTiled, the decoders and tiles are ours
+			((TiledBitmapDrawable) drawable).dispose();
+			return;
+		}
+
+		if (drawable instanceof FastBitmapDrawable) {
+			// a pyramid build may still be reading the bitmap: keep it out
+			// of the cache and the pool until it ends
+			((FastBitmapDrawable) drawable).releasePyramid(new Runnable() {
+
+				@Override
+				public void run() {
+					releaseBitmap(drawable);
+				}
+			});
+			return;
+		}
+		releaseBitmap(drawable);
+	}
+
+	private void releaseBitmap(Drawable drawable) {
+		if (!(drawable instanceof IBitmapDrawable)) {
+			return;
+		}
+
+		final Bitmap bitmap = ((IBitmapDrawable) drawable).getBitmap();
+		if (bitmap == null) {
+			return;
+		}
+
+		if (mMemoryCache != null) {
+			if (mPinnedBitmaps.remove(bitmap)) {
+				mMemoryCache.unpin(bitmap);
+			}
+			if (mMemoryCache.release(bitmap)) {
+				return;
+			}
+		}
+
+		if (mBitmapPool != null && !isBitmapInUse(bitmap)) {
+			mBitmapPool.put(bitmap);
+		}
+	}
+
+	public boolean isLoadingImage() {
+		return mImageLoader.isLoading();
+	}
+
+	@Override
+	public void setImageDrawable(Drawable drawable) {
+		if (null != mImageLoader) {
+			cancelLoading();
+			stopPaging();
+		}
+		mPreviewDrawable = null;
+		mCurrentUseDrawable = 0;
+		if (mDrawables != null) {
+			setDrawableAt(0, drawable);
+		}
+		setImageDrawable(mDrawables, true, null, -1);
+	}
+
+	public void setImageDrawable(final Drawable[] drawables, final boolean reset,
+			final Matrix initial_matrix, final float maxZoom) {
+
+		final int viewWidth = getWidth();
+
+		if (viewWidth <= 0) {
+			mOnLayoutRunnable = new Runnable() {
+
+				@Override
+				public void run() {
+					setImageDrawable(drawables, reset, initial_matrix, maxZoom);
+				}
+			};
+			return;
+		}
+
+		_setImageDrawable(drawables, reset, initial_matrix, maxZoom);
+	}
+
+	protected void _setImageDrawable(final Drawable[] drawable,
+			final boolean reset, final Matrix initial_matrix,
+			final float maxZoom) {
+
+		if (drawable != null) {
+			int i = 0;
+			for (i = 0; i < mBaseMatrixX.length; i++) {
+				if (drawable[i] != null) {
+					getProperBaseMatrixInitial(drawable[i], mBaseMatrixX[i]);
+				}
+			}
+
+			super.setImageDrawable(drawable[mCurrentUseDrawable]);
+
+		} else {
+			int i = 0;
+			for (i = 0; i < mBaseMatrixX.length; i++) {
+				mBaseMatrixX[i].reset();
+			}
+			super.setImageDrawable(null);
+		}
+
+		releaseRetiredDrawables();
+		invalidateLayoutState();
+
+		if (reset) {
+			resetSupportMatrix();
+		}
+
+		if (initial_matrix != null) {
+			setSupportMatrix(initial_matrix);
+		}
+
+		setImageMatrix(getImageViewMatrix());
+
+		if (maxZoom < 1)
+			mMaxZoom = maxZoom();
+		else
+			mMaxZoom = maxZoom;
+
+        if (getDefaultMaxZoom() > 0) {
+            mMaxZoom = getDefaultMaxZoom();
+        }
+
+		if (drawable == null) {
+			onBitmapChanged(null);
+		} else {
+			onBitmapChanged(drawable[mCurrentUseDrawable]);
+		}
+	}	
+	
+
+	protected void onBitmapChanged(final Drawable bitmap) {
+		updateRenderQuality();
+		if (mListener != null) {
+			mListener.onBitmapChanged(bitmap);
+		}
+	}
+
+	/**
+	 * compute the max allowed zoom fator
+	 * 
+	 * @return
+	 */
+	protected float maxZoom() {
+		final Drawable drawable = getDrawable();
 
 		if (drawable == null) {
 			return 1F;
 		}
 
-        float max;
-        float fw = (float) drawable.getIntrinsicWidth() / (float) mThisWidth;
-        float fh = (float) drawable.getIntrinsicHeight() / (float) mThisHeight;
-        //float max = Math.max( fw, fh ) * 4;
-        max = (1.0f / Math.min(fw, fh)) * 4;
-//        if (max > MAX_ZOOM) {
-//            max = MAX_ZOOM;
-//        }
-		return max;
+		return maxZoom(drawable, mThisWidth, mThisHeight);
+	}
+
+	/**
+	 * compute the max allowed zoom factor of the drawable. A downsampled image
+	 * can't be magnified past its source pixels, so its source size is used
+	 */
+	protected float maxZoom(Drawable drawable, int viewWidth, int viewHeight) {
+		if (drawable instanceof ISampledDrawable) {
+			final ISampledDrawable sampled = (ISampledDrawable) drawable;
+			return maxZoom(sampled.getSourceWidth(), sampled.getSourceHeight(), viewWidth, viewHeight);
+		}
+		return maxZoom(drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(), viewWidth, viewHeight);
+	}
+
+	/**
+	 * compute the max allowed zoom factor for an image of the given size
+	 */
+	protected float maxZoom(int imageWidth, int imageHeight, int viewWidth, int viewHeight) {
+		return ZoomPanEngine.computeMaxZoom(imageWidth, imageHeight, viewWidth, viewHeight);
 	}
 
 	protected float minZoom() {
 		return 1F;
 	}
 
+	/**
+	 * Set the policy which chooses the drawable render quality while the user
+	 * interacts with the view and while it's idle. Defaults to
+	 * {@link RenderQualityPolicy#DEFAULT}
+	 */
+	public void setRenderQualityPolicy(RenderQualityPolicy policy) {
+		mRenderQualityPolicy = policy != null ? policy : RenderQualityPolicy.ALWAYS_HIGH;
+		updateRenderQuality();
+	}
+
+	public RenderQualityPolicy getRenderQualityPolicy() {
+		return mRenderQualityPolicy;
+	}
+
+	/**
+	 * Returns true while the image is moving because of a gesture or an
+	 * animation
+	 */
+	public boolean isInteracting() {
+		return mRunningAnimations > 0;
+	}
+
+	/**
+	 * Apply the quality chosen by the {@link RenderQualityPolicy} to the
+	 * current drawable and hold back the background work of the
+	 * {@link WorkScheduler} while interacting. Must be called every time
+	 * {@link #isInteracting()} or the scale may have changed
+	 */
+	protected void updateRenderQuality() {
+		if (mWorkScheduler != null) {
+			mWorkScheduler.setInteracting(isInteracting());
+		}
+
+		final Drawable drawable = getDrawable();
+		if (drawable instanceof IRenderQualityDrawable && mRenderQualityPolicy != null) {
+			RenderQuality quality = mRenderQualityPolicy.getRenderQuality(isInteracting(), getScale());
+			if (quality != mAppliedRenderQuality || drawable != mRenderQualityDrawable) {
+				mAppliedRenderQuality = quality;
+				mRenderQualityDrawable = drawable;
+				((IRenderQualityDrawable) drawable).setRenderQuality(quality);
+			}
+		}
+	}
+
+	protected void onAnimationStarted() {
+		mRunningAnimations++;
+		updateRenderQuality();
+	}
+
+	protected void onAnimationEnded() {
+		if (mRunningAnimations > 0) {
+			mRunningAnimations--;
+		}
+		updateRenderQuality();
+	}
+
 	public float getMaxZoom() {
 		if (mMaxZoom < 1) {
 			mMaxZoom = maxZoom();
@@ -408,12 +1304,112 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
         return MIN_ZOOM;
 	}
 
+	/**
+	 * Apply the new image matrix, publish a new {@link ViewportSnapshot} and,
+	 * if the current drawable is an {@link IViewportDrawable}, notify it about
+	 * the new visible area
+	 */
+	@Override
+	public void setImageMatrix(Matrix matrix) {
+		super.setImageMatrix(matrix);
+
+		if (mViewportSnapshot != null) {
+			publishViewportSnapshot();
+		}
+
+		// the policy may depend on the scale
+		updateRenderQuality();
+
+		final Drawable drawable = getDrawable();
+		if (drawable instanceof IViewportDrawable) {
+			((IViewportDrawable) drawable).setViewport(matrix, getWidth(), getHeight());
+		}
+	}
+
+	/**
+	 * Returns the viewport at the last display matrix change. Can be called
+	 * from any thread: background workers use it to know what is visible
+	 * without posting to the UI thread
+	 */
+	public ViewportSnapshot getViewportSnapshot() {
+		return mViewportSnapshot.get();
+	}
+
+	/**
+	 * Returns the sequence number of the last published snapshot. Work
+	 * started for a lower sequence is outdated. Can be called from any
+	 * thread
+	 */
+	public long getViewportSequence() {
+		return mViewportSnapshot.get().getSequence();
+	}
+
+	protected void publishViewportSnapshot() {
+		final ZoomPanEngine engine = syncEngine();
+		final Drawable drawable = getDrawable();
+		final Affine baseMatrix = mBaseMatrixX[mCurrentUseDrawable];
+		ViewportSnapshot previous = mViewportSnapshot.get();
+
+		// a jump caused by a new drawable, page, base matrix or view size is
+		// not motion: restart the velocity from zero
+		if (drawable != mSnapshotDrawable || !baseMatrix.equals(mSnapshotBaseMatrix)
+				|| previous.getViewWidth() != engine.getViewWidth()
+				|| previous.getViewHeight() != engine.getViewHeight()) {
+			previous = null;
+		}
+		mSnapshotDrawable = drawable;
+		mSnapshotBaseMatrix.set(baseMatrix);
+
+		mViewportSnapshot.set(ViewportSnapshot.capture(engine, ++mViewportSequence,
+				System.nanoTime(), previous));
+	}
+
 	public Matrix getImageViewMatrix() {
-		mDisplayMatrix.set(mBaseMatrixX[mCurrentUseDrawable]);
-		mDisplayMatrix.postConcat(mSuppMatrix);
+		syncEngine().getDisplayMatrix(mDisplayAffine);
+		mDisplayAffine.getValues(mMatrixValues);
+		mDisplayMatrix.setValues(mMatrixValues);
 		return mDisplayMatrix;
 	}
 
+	/**
+	 * Update the engine with the current view size and drawable
+	 */
+	protected ZoomPanEngine syncEngine() {
+		mEngine.setViewSize(getWidth(), getHeight());
+		final Drawable drawable = getDrawable();
+		if (drawable == null) {
+			mEngine.clearContent();
+		} else {
+			mEngine.setContent(mBaseMatrixX[mCurrentUseDrawable],
+					drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+		}
+		return mEngine;
+	}
+
+	/**
+	 * Returns the support matrix, updated from the current scale and
+	 * translation. The returned instance must not be modified
+	 */
+	protected Matrix getSupportMatrix() {
+		mSupportMatrix.setScale(mEngine.getScale(), mEngine.getScale());
+		mSupportMatrix.postTranslate(mEngine.getTranslateX(), mEngine.getTranslateY());
+		return mSupportMatrix;
+	}
+
+	/**
+	 * Set the support transform from a matrix. Only the scale and the
+	 * translation are used
+	 */
+	protected void setSupportMatrix(Matrix matrix) {
+		matrix.getValues(mMatrixValues);
+		mEngine.setTransform(mMatrixValues[Matrix.MSCALE_X],
+				mMatrixValues[Matrix.MTRANS_X], mMatrixValues[Matrix.MTRANS_Y]);
+	}
+
+	protected void resetSupportMatrix() {
+		mEngine.reset();
+	}
+
 	/**
 	 * Returns the current image display matrix. This matrix can be used in the
 	 * next call to the {@link #setImageBitmap(Bitmap, boolean, Matrix)} to
@@ -422,7 +1418,7 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 	 * @return
 	 */
 	public Matrix getDisplayMatrix() {
-		return new Matrix(mSuppMatrix);
+		return new Matrix(getSupportMatrix());
 	}
 
 	/**
@@ -432,58 +1428,49 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 	 * @param matrix
 	 */
 
-	protected void getProperBaseMatrixInitial(Drawable drawable, Matrix matrix) {
-		float viewWidth = getWidth();
-		float viewHeight = getHeight();
-		float w = drawable.getIntrinsicWidth();
-		float h = drawable.getIntrinsicHeight();
-		float tw = 0.0f;
-		float th = 0.0f;
-
-		matrix.reset();
-
-		float widthScale = Math.min(viewWidth / w, mMaxZoom);
-		float heightScale = Math.min(viewHeight / h, mMaxZoom);
-		float scale = 0.0f;
-
-		switch (mImageZoomType) {
-		case ZOOM_TYPE_FIT_TO_SCRREN_SMALL:
-			scale = Math.min(widthScale, heightScale);
-			widthScale = scale;
-			heightScale = scale;
-			break;
-
-		case ZOOM_TYPE_FIT_TO_SCRREN_BIG:
-			/** Landscape **/
-			if (viewWidth > viewHeight) {
-				scale = widthScale;
-				th = h;
-			} else {
-				scale = heightScale;
-				tw = -w;
-			}
-			widthScale = scale;
-			heightScale = scale;
-			
-			break;
+	protected void getProperBaseMatrixInitial(Drawable drawable, Affine matrix) {
+		getProperBaseMatrixInitial(getWidth(), getHeight(),
+				drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(),
+				mMaxZoom, matrix);
+	}
 
-		case ZOOM_TYPE_FIT_TO_WIDTH:
-			heightScale = widthScale;
-			th = h;
-			break;
-		case ZOOM_TYPE_FIT_TO_HEIGHT:
-			widthScale = heightScale;
-			tw = -w;
-			break;
+	/**
+	 * Setup the base matrix for an image of size w x h, according to the
+	 * current zoom type.
+	 * 
+	 * @param maxScale
+	 *            - the max scale the base matrix can have
+	 */
+	protected void getProperBaseMatrixInitial(float viewWidth, float viewHeight,
+			float w, float h, float maxScale, Affine matrix) {
+		ZoomPanEngine.computeBaseMatrix(mImageZoomType, viewWidth, viewHeight, w, h, maxScale, matrix);
+	}
 
-		default:
-			break;
+	/**
+	 * Compute the size at which an image should be decoded in order to be
+	 * displayed at full quality in this view: the scale of the base matrix
+	 * (for the current zoom type) times the max zoom. If the view has not been
+	 * measured yet the display size is used.<br />
+	 * This method can be called from any thread.
+	 */
+	@Override
+	public void getDecodeSize(int imageWidth, int imageHeight, Point outSize) {
+		int viewWidth = getWidth();
+		int viewHeight = getHeight();
+
+		if (viewWidth <= 0 || viewHeight <= 0) {
+			DisplayMetrics metrics = getResources().getDisplayMetrics();
+			viewWidth = metrics.widthPixels;
+			viewHeight = metrics.heightPixels;
 		}
 
-		matrix.postScale(widthScale, heightScale);
+		float maxZoom = getDefaultMaxZoom() > 0 ? getDefaultMaxZoom()
+				: maxZoom(imageWidth, imageHeight, viewWidth, viewHeight);
 
-		matrix.postTranslate(tw, th);
-	
+		float scale = ZoomPanEngine.computeDecodeScale(mImageZoomType, viewWidth,
+				viewHeight, imageWidth, imageHeight, maxZoom);
+		outSize.set((int) Math.ceil(imageWidth * scale),
+				(int) Math.ceil(imageHeight * scale));
 	}
 
 	/**
@@ -514,100 +1501,90 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 		}
 	}
 
-	protected float getValue(Matrix matrix, int whichValue) {
-		matrix.getValues(mMatrixValues);
-		return mMatrixValues[whichValue];
-	}
-
+	/**
+	 * Returns the image bounds in view coordinates. The returned instance is
+	 * reused
+	 */
 	public RectF getBitmapRect() {
-		return getBitmapRect(mSuppMatrix);
-	}
+		FloatRect rect = syncEngine().getBitmapRect();
 
-	protected RectF getBitmapRect(Matrix supportMatrix) {
-		final Drawable drawable = getDrawable();
-
-		if (drawable == null)
+		if (rect == null)
 			return null;
-		Matrix m = getImageViewMatrix();
-		mBitmapRect.set(0, 0, drawable.getIntrinsicWidth(),
-				drawable.getIntrinsicHeight());
-		m.mapRect(mBitmapRect);
+		mBitmapRect.set(rect.left, rect.top, rect.right, rect.bottom);
 		return mBitmapRect;
 	}
 
-	protected float getScale(Matrix matrix) {
-		return getValue(matrix, Matrix.MSCALE_X);
-	}
-
 	public float getRotation() {
 		return 0;
 	}
 
 	public float getScale() {
-		return getScale(mSuppMatrix);
+		return mEngine.getScale();
 	}
 	
 	public float getRealScale() {
-		return getScale(mBaseMatrixX[mCurrentUseDrawable]);
+		return mBaseMatrixX[mCurrentUseDrawable].getScaleX();
 	}
 
 	protected void center(boolean horizontal, boolean vertical) {
-		final Drawable drawable = getDrawable();
-
-		if (drawable == null)
-			return;
-		RectF rect = getCenter(mSuppMatrix, horizontal, vertical);
-
-		if (rect.left != 0 || rect.top != 0) {
-			postTranslate(rect.left, rect.top);
+		if (syncEngine().center(horizontal, vertical)) {
+			updateImageMatrix();
 		}
 	}
 
-	protected RectF getCenter(Matrix supportMatrix, boolean horizontal,
-			boolean vertical) {
-		final Drawable drawable = getDrawable();
+	protected RectF getCenter(boolean horizontal, boolean vertical) {
+		FloatRect rect = syncEngine().getCenter(horizontal, vertical);
+		mCenterRect.set(rect.left, rect.top, 0, 0);
+		return mCenterRect;
+	}
+
+	protected void postTranslate(float deltaX, float deltaY) {
+		mEngine.postTranslate(deltaX, deltaY);
+		updateImageMatrix();
+	}
 
-		if (drawable == null)
-			return new RectF(0, 0, 0, 0);
+	protected void postScale(float scale, float centerX, float centerY) {
+		mEngine.postScale(scale, centerX, centerY);
+		updateImageMatrix();
+	}
 
-		mCenterRect.set(0, 0, 0, 0);
-		RectF rect = getBitmapRect(supportMatrix);
-		float height = rect.height();
-		float width = rect.width();
-		float deltaX = 0, deltaY = 0;
+	/**
+	 * Start batching the changes to the support matrix: the display matrix is
+	 * only updated, and the view invalidated, once by the matching
+	 * {@link #commitTransaction()}. Transactions can be nested.<br />
+	 * The getters ({@link #getScale()}, {@link #getBitmapRect()}...) always
+	 * reflect the pending changes.
+	 */
+	public void beginTransaction() {
+		mTransactionDepth++;
+	}
 
-		if (vertical) {
-			int viewHeight = getHeight();
-			if (height < viewHeight) {
-				deltaY = (viewHeight - height) / 2 - rect.top;
-			} else if (rect.top > 0) {
-				deltaY = -rect.top;
-			} else if (rect.bottom < viewHeight) {
-				deltaY = getHeight() - rect.bottom;
-			}
-		}
-		if (horizontal) {
-			int viewWidth = getWidth();
-			if (width < viewWidth) {
-				deltaX = (viewWidth - width) / 2 - rect.left;
-			} else if (rect.left > 0) {
-				deltaX = -rect.left;
-			} else if (rect.right < viewWidth) {
-				deltaX = viewWidth - rect.right;
-			}
+	/**
+	 * End a transaction started with {@link #beginTransaction()}. If it's the
+	 * outermost one and the support matrix changed, the display matrix is
+	 * updated
+	 */
+	public void commitTransaction() {
+		if (mTransactionDepth > 0 && --mTransactionDepth == 0 && mMatrixChanged) {
+			mMatrixChanged = false;
+			setImageMatrix(getImageViewMatrix());
 		}
-		mCenterRect.set(deltaX, deltaY, 0, 0);
-		return mCenterRect;
 	}
 
-	protected void postTranslate(float deltaX, float deltaY) {
-		mSuppMatrix.postTranslate(deltaX, deltaY);
-		setImageMatrix(getImageViewMatrix());
+	public boolean isInTransaction() {
+		return mTransactionDepth > 0;
 	}
 
-	protected void postScale(float scale, float centerX, float centerY) {
-		mSuppMatrix.postScale(scale, scale, centerX, centerY);
-		setImageMatrix(getImageViewMatrix());
+	/**
+	 * Apply the support matrix to the view, or defer it to the end of the
+	 * current transaction
+	 */
+	protected void updateImageMatrix() {
+		if (mTransactionDepth > 0) {
+			mMatrixChanged = true;
+		} else {
+			setImageMatrix(getImageViewMatrix());
+		}
 	}
 
 	protected void zoomTo(float scale) {
@@ -675,14 +1652,14 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 	}
 
 	protected void zoomTo(float scale, float centerX, float centerY) {
-		if (scale > mMaxZoom)
-			scale = mMaxZoom;
-		float oldScale = getScale();
-		float deltaScale = scale / oldScale;
-
-		postScale(deltaScale, centerX, centerY);
-		onZoom(getScale());
-		center(true, true);
+		beginTransaction();
+		try {
+			syncEngine().zoomTo(scale, centerX, centerY, mMaxZoom);
+			updateImageMatrix();
+			onZoom(getScale());
+		} finally {
+			commitTransaction();
+		}
 	}
 
 	protected void onZoom(float scale) {
@@ -696,63 +1673,29 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 	}
 
 	protected void panBy(double dx, double dy) {
-		RectF rect = getBitmapRect();
-		mScrollRect.set((float) dx, (float) dy, 0, 0);
-		updateRect(rect, mScrollRect);
-		postTranslate(mScrollRect.left, mScrollRect.top);
-		center(true, true);
+		beginTransaction();
+		try {
+			syncEngine().panBy((float) dx, (float) dy);
+			updateImageMatrix();
+		} finally {
+			commitTransaction();
+		}
 	}
 
 	protected void updateRect(RectF bitmapRect, RectF scrollRect) {
 		if (bitmapRect == null) {
 			return;
 		}
-		float width = getWidth();
-		float height = getHeight();
-
-		if (bitmapRect.top >= 0 && bitmapRect.bottom <= height)
-			scrollRect.top = 0;
-		if (bitmapRect.left >= 0 && bitmapRect.right <= width)
-			scrollRect.left = 0;
-		if (bitmapRect.top + scrollRect.top >= 0 && bitmapRect.bottom > height)
-			scrollRect.top = (int) (0 - bitmapRect.top);
-		if (bitmapRect.bottom + scrollRect.top <= (height - 0)
-				&& bitmapRect.top < 0)
-			scrollRect.top = (int) ((height - 0) - bitmapRect.bottom);
-		if (bitmapRect.left + scrollRect.left >= 0)
-			scrollRect.left = (int) (0 - bitmapRect.left);
-		if (bitmapRect.right + scrollRect.left <= (width - 0))
-			scrollRect.left = (int) ((width - 0) - bitmapRect.right);
+		mClampBitmapRect.set(bitmapRect.left, bitmapRect.top, bitmapRect.right, bitmapRect.bottom);
+		mClampScrollRect.set(scrollRect.left, scrollRect.top, scrollRect.right, scrollRect.bottom);
+		syncEngine().clampScroll(mClampBitmapRect, mClampScrollRect);
+		scrollRect.left = mClampScrollRect.left;
+		scrollRect.top = mClampScrollRect.top;
 	}
 
 	protected void scrollBy(float distanceX, float distanceY,
 			final double durationMs) {
-		final double dx = distanceX;
-		final double dy = distanceY;
-		final long startTime = System.currentTimeMillis();
-		mHandler.post(new Runnable() {
-
-			double old_x = 0;
-			double old_y = 0;
-
-			@Override
-			public void run() {
-				long now = System.currentTimeMillis();
-				double currentMs = Math.min(durationMs, now - startTime);
-				double x = mEasing.easeOut(currentMs, 0, dx, durationMs);
-				double y = mEasing.easeOut(currentMs, 0, dy, durationMs);
-				panBy((x - old_x), (y - old_y));
-				old_x = x;
-				old_y = y;
-				if (currentMs < durationMs) {
-					mHandler.post(this);
-				} else {
-					RectF centerRect = getCenter(mSuppMatrix, true, true);
-					if (centerRect.left != 0 || centerRect.top != 0)
-						scrollBy(centerRect.left, centerRect.top);
-				}
-			}
-		});
+		mAnimator.pan(distanceX, distanceY, durationMs);
 	}
 
 	protected void zoomTo(float scale, final float centerX,
@@ -765,35 +1708,447 @@ public class ImageViewTouchBase extends ImageView implements IDisposable {
 			scale = getMinZoom();
 		}
 		
-		final long startTime = System.currentTimeMillis();
-		final float incrementPerMs = (scale - getScale()) / durationMs;
-		final float oldScale = getScale();
 		if (durationMs == 0) {
 			// special case for instantaneous zoom
+			mAnimator.cancelZoom();
 			zoomTo(scale, centerX, centerY);
 		} else {
-			mHandler.post(new Runnable() {
+			mAnimator.zoom(getScale(), scale, centerX, centerY, durationMs);
+		}
+	}
 
-				@Override
-				public void run() {
-					long now = System.currentTimeMillis();
-					float currentMs = Math.min(durationMs, now - startTime);
-					float target = oldScale + (incrementPerMs * currentMs);
-					zoomTo(target, centerX, centerY);
-					if (currentMs < durationMs) {
-						mHandler.post(this);
-					} else {
-						// if ( getScale() < 1f ) {}
-						//onZoomAnimationCompleted(getScale());
-						//center(true, true);
-					}
-				}
-			});
+	/**
+	 * Start a kinetic scroll: the image decelerates from the given velocity,
+	 * in pixels per second, until it stops or reaches its edges. A running
+	 * scroll animation is replaced.
+	 * 
+	 * @see #setFlingOverScroll(int)
+	 * @see #getFlingEndRect(RectF)
+	 */
+	public void fling(float velocityX, float velocityY) {
+		RectF rect = getBitmapRect();
+		if (rect == null) {
+			return;
+		}
+		mAnimator.fling(rect, (int) velocityX, (int) velocityY, getWidth(), getHeight(), mFlingOverScroll);
+	}
+
+	/**
+	 * Stop the current fling, if any, where it is
+	 */
+	public void stopFling() {
+		mAnimator.cancelFling();
+	}
+
+	public boolean isFlinging() {
+		return mAnimator.isFlinging();
+	}
+
+	/**
+	 * Allow a fling to go past the image edges by the given distance in
+	 * pixels, then bounce back. Default is 0
+	 */
+	public void setFlingOverScroll(int distance) {
+		mFlingOverScroll = Math.max(0, distance);
+	}
+
+	/**
+	 * Returns the predicted bitmap rect (see {@link #getBitmapRect()}) at the
+	 * end of the current fling, so that the content which will become visible
+	 * can be loaded in advance
+	 * 
+	 * @return false if there's no fling running
+	 */
+	public boolean getFlingEndRect(RectF outRect) {
+		RectF rect = getBitmapRect();
+		if (rect == null || !mAnimator.isFlinging()) {
+			return false;
+		}
+		outRect.set(rect);
+		outRect.offset(mAnimator.getFlingRemainingX(), mAnimator.getFlingRemainingY());
+		return true;
+	}
+
+	/**
+	 * Set how far ahead, in ms, the viewport is projected while a fling or an
+	 * animation runs. The content visible there is requested in advance from
+	 * an {@link IPrefetchDrawable}. Pass 0 to disable
+	 */
+	public void setPrefetchLookahead(long lookaheadMs) {
+		mPrefetchLookahead = Math.max(0, lookaheadMs);
+	}
+
+	public long getPrefetchLookahead() {
+		return mPrefetchLookahead;
+	}
+
+	/**
+	 * Project the image view matrix the given time ahead. The fling is
+	 * projected from its current velocity, the scroll and zoom animations,
+	 * which are short, to their end
+	 * 
+	 * @return false if the image is not moving
+	 */
+	public boolean getPredictedImageViewMatrix(long lookaheadMs, Matrix outMatrix) {
+		if (!mAnimator.isRunning() || getDrawable() == null) {
+			return false;
+		}
+		outMatrix.set(getImageViewMatrix());
+
+		final ZoomPanAnimator steps = mAnimator.mSteps;
+		if (steps.isZooming()) {
+			final float scale = getScale();
+			if (scale > 0) {
+				final float ratio = steps.getZoomTarget() / scale;
+				outMatrix.postScale(ratio, ratio, steps.getZoomCenterX(), steps.getZoomCenterY());
+			}
+		}
+
+		final float fraction = mAnimator.getFlingFraction(lookaheadMs);
+		final float dx = (float) steps.getPanRemainingX() + mAnimator.getFlingRemainingX() * fraction;
+		final float dy = (float) steps.getPanRemainingY() + mAnimator.getFlingRemainingY() * fraction;
+		outMatrix.postTranslate(dx, dy);
+		return true;
+	}
+
+	/**
+	 * Pass the predicted matrix to the current drawable, if it's an
+	 * {@link IPrefetchDrawable}
+	 */
+	protected void updatePrefetch() {
+		final Drawable drawable = getDrawable();
+		if (!(drawable instanceof IPrefetchDrawable) || mPrefetchLookahead <= 0) {
+			return;
+		}
+		if (getPredictedImageViewMatrix(mPrefetchLookahead, mPredictedMatrix)) {
+			((IPrefetchDrawable) drawable).prefetch(mPredictedMatrix, getWidth(), getHeight());
+		}
+	}
+
+	protected void cancelPrefetch() {
+		final Drawable drawable = getDrawable();
+		if (drawable instanceof IPrefetchDrawable) {
+			((IPrefetchDrawable) drawable).cancelPrefetch();
 		}
 	}
 
+	/**
+	 * Returns true while a zoom or scroll animation is running
+	 */
+	public boolean isAnimating() {
+		return mAnimator.isRunning();
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		mAnimator.cancel();
+		super.onDetachedFromWindow();
+	}
+
 	@Override
 	public void dispose() {
+		mAnimator.cancel();
+		cancelLoading();
+		mWorkScheduler.clear();
+		stopPaging();
 		clear();
 	}
+
+	/**
+	 * Runs the zoom and scroll animations, applying at most one update of each
+	 * per frame. Frames are driven by the {@link Choreographer} where
+	 * available, through a {@link FrameCallbackHolder} so the class still
+	 * loads on older devices. A single instance is reused, so nothing is
+	 * allocated while animating.<br />
+	 * The zoom and scroll steps are computed by a {@link ZoomPanAnimator}, a
+	 * new scroll animation also replaces a fling.
+	 */
+	protected class TransformAnimator implements Runnable, ZoomPanAnimator.Target {
+
+		/** frame delay used where the Choreographer is not available */
+		static final long FALLBACK_FRAME_DELAY = 16;
+
+		boolean mRunning;
+		boolean mScheduled;
+
+		final ZoomPanAnimator mSteps = new ZoomPanAnimator(this);
+
+		/** only created where the Choreographer is available */
+		FrameCallbackHolder mFrameCallback;
+
+		OverScroller mScroller;
+		boolean mFlinging;
+		int mFlingX;
+		int mFlingY;
+		long mLastPrefetch;
+
+		public void zoom(float fromScale, float toScale, float centerX, float centerY, float durationMs) {
+			mSteps.zoom(SystemClock.uptimeMillis(), fromScale, toScale, centerX, centerY, durationMs);
+			start();
+		}
+
+		public void pan(double dx, double dy, double durationMs) {
+			cancelFling();
+			mSteps.setEasing(mEasing);
+			mSteps.pan(SystemClock.uptimeMillis(), dx, dy, durationMs);
+			start();
+		}
+
+		/**
+		 * @param bitmapRect
+		 *            - the current bitmap rect, used to compute the scroll
+		 *            bounds
+		 */
+		public void fling(RectF bitmapRect, int velocityX, int velocityY, int viewWidth, int viewHeight, int overScroll) {
+			if (mScroller == null) {
+				mScroller = new OverScroller(getContext());
+			}
+			mSteps.cancelPan();
+
+			final int startX = Math.round(bitmapRect.left);
+			final int startY = Math.round(bitmapRect.top);
+			int minX = startX, maxX = startX, overX = 0;
+			int minY = startY, maxY = startY, overY = 0;
+
+			if (bitmapRect.width() > viewWidth) {
+				minX = Math.round(viewWidth - bitmapRect.width());
+				maxX = 0;
+				overX = overScroll;
+			} else {
+				velocityX = 0;
+			}
+
+			if (bitmapRect.height() > viewHeight) {
+				minY = Math.round(viewHeight - bitmapRect.height());
+				maxY = 0;
+				overY = overScroll;
+			} else {
+				velocityY = 0;
+			}
+
+			mScroller.fling(startX, startY, velocityX, velocityY, minX, maxX, minY, maxY, overX, overY);
+			mFlingX = startX;
+			mFlingY = startY;
+			mFlinging = true;
+			start();
+		}
+
+		public void cancelZoom() {
+			mSteps.cancelZoom();
+			if (!mSteps.isPanning() && !mFlinging) {
+				cancel();
+			}
+		}
+
+		public void cancelFling() {
+			if (!mFlinging) {
+				return;
+			}
+			mFlinging = false;
+			mScroller.forceFinished(true);
+			if (!mSteps.isRunning()) {
+				cancel();
+			}
+		}
+
+		/**
+		 * Stop all the animations where they are
+		 */
+		public void cancel() {
+			mSteps.cancel();
+			if (mFlinging) {
+				mFlinging = false;
+				mScroller.forceFinished(true);
+			}
+			if (mScheduled) {
+				mScheduled = false;
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+					removeFrameCallback();
+				} else {
+					mHandler.removeCallbacks(this);
+				}
+			}
+			stop();
+		}
+
+		public boolean isRunning() {
+			return mRunning;
+		}
+
+		public boolean isZooming() {
+			return mSteps.isZooming();
+		}
+
+		public boolean isPanning() {
+			return mSteps.isPanning();
+		}
+
+		public boolean isFlinging() {
+			return mFlinging;
+		}
+
+		/**
+		 * Returns the distance the fling still has to travel on the x axis
+		 */
+		public int getFlingRemainingX() {
+			return mFlinging ? mScroller.getFinalX() - mFlingX : 0;
+		}
+
+		public int getFlingRemainingY() {
+			return mFlinging ? mScroller.getFinalY() - mFlingY : 0;
+		}
+
+		/**
+		 * Returns the part of the remaining fling distance covered in the
+		 * given time at the current velocity, between 0 and 1
+		 */
+		public float getFlingFraction(long timeMs) {
+			if (!mFlinging) {
+				return 0;
+			}
+			final float remaining = (float) Math.hypot(getFlingRemainingX(), getFlingRemainingY());
+			if (remaining < 1) {
+				return 1;
+			}
+			return Math.min(1f, mScroller.getCurrVelocity() * timeMs / 1000f / remaining);
+		}
+
+		void doFrame(long frameTimeNanos) {
+			mScheduled = false;
+			step(frameTimeNanos / 1000000L);
+		}
+
+		@Override
+		public void run() {
+			mScheduled = false;
+			step(SystemClock.uptimeMillis());
+		}
+
+		void step(long now) {
+			// all the changes of this frame are applied at once
+			beginTransaction();
+			try {
+				stepTransform(now);
+			} finally {
+				commitTransaction();
+			}
+
+			if (mSteps.isRunning() || mFlinging) {
+				if (now - mLastPrefetch >= PREFETCH_INTERVAL) {
+					mLastPrefetch = now;
+					updatePrefetch();
+				}
+				schedule();
+			} else {
+				stop();
+			}
+		}
+
+		void stepTransform(long now) {
+			mSteps.step(now);
+
+			if (mFlinging) {
+				if (mScroller.computeScrollOffset()) {
+					final int x = mScroller.getCurrX();
+					final int y = mScroller.getCurrY();
+					postTranslate(x - mFlingX, y - mFlingY);
+					mFlingX = x;
+					mFlingY = y;
+				}
+				if (mScroller.isFinished()) {
+					mFlinging = false;
+					center(true, true);
+				}
+			}
+		}
+
+		@Override
+		public void onZoomStep(float scale, float centerX, float centerY) {
+			zoomTo(scale, centerX, centerY);
+		}
+
+		@Override
+		public void onPanStep(double dx, double dy) {
+			panBy(dx, dy);
+		}
+
+		@Override
+		public void onPanEnd() {
+			RectF centerRect = getCenter(true, true);
+			if (centerRect.left != 0 || centerRect.top != 0)
+				scrollBy(centerRect.left, centerRect.top);
+		}
+
+		void start() {
+			if (!mRunning) {
+				mRunning = true;
+				onAnimationStarted();
+			}
+			// the motion changed, predict again at the next frame
+			mLastPrefetch = 0;
+			schedule();
+		}
+
+		void stop() {
+			if (mRunning) {
+				mRunning = false;
+				cancelPrefetch();
+				onAnimationEnded();
+			}
+		}
+
+		void schedule() {
+			if (mScheduled) {
+				return;
+			}
+			mScheduled = true;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+				postFrameCallback();
+			} else {
+				mHandler.postDelayed(this, FALLBACK_FRAME_DELAY);
+			}
+		}
+
+		void postFrameCallback() {
+			if (mFrameCallback == null) {
+				mFrameCallback = new FrameCallbackHolder(this);
+			}
+			mFrameCallback.post();
+		}
+
+		void removeFrameCallback() {
+			if (mFrameCallback != null) {
+				mFrameCallback.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forwards the {@link Choreographer} frames to a {@link TransformAnimator}.
+	 * Kept apart so that the animator doesn't reference the API 16 interface
+	 * and must only be created when {@link Build.VERSION#SDK_INT} is at least
+	 * {@link Build.VERSION_CODES#JELLY_BEAN}
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	protected static final class FrameCallbackHolder implements Choreographer.FrameCallback {
+
+		final TransformAnimator mAnimator;
+
+		FrameCallbackHolder(TransformAnimator animator) {
+			mAnimator = animator;
+		}
+
+		void post() {
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		void remove() {
+			Choreographer.getInstance().removeFrameCallback(this);
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			mAnimator.doFrame(frameTimeNanos);
+		}
+	}
 }
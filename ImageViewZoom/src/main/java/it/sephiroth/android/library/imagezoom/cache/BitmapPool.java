@@ -0,0 +1,254 @@
+package it.sephiroth.android.library.imagezoom.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Pool of bitmaps which can be reused as {@link android.graphics.BitmapFactory.Options#inBitmap}.<br />
+ * On KitKat and later bitmaps are grouped in size classes (power of 2 of their
+ * allocation size) and any bitmap big enough can be reused, on previous
+ * versions only bitmaps with the very same size and config are reused.<br />
+ * Only bitmaps decoded by the library (see {@link #track(Bitmap)}) are
+ * accepted back in the pool, so bitmaps owned by the application are never
+ * reused.
+ *
+ */
+public class BitmapPool {
+
+	private static BitmapPool sDefault;
+
+	/**
+	 * Returns the pool shared by all the views, which uses up to 1/8 of the
+	 * available heap
+	 */
+	public static synchronized BitmapPool getDefault() {
+		if ( null == sDefault ) {
+			sDefault = new BitmapPool( Runtime.getRuntime().maxMemory() / 8 );
+		}
+		return sDefault;
+	}
+
+	private final long mMaxSize;
+	private long mSize;
+
+	private final HashMap<Long, ArrayList<Bitmap>> mGroups = new HashMap<Long, ArrayList<Bitmap>>();
+	private final LinkedList<Bitmap> mLru = new LinkedList<Bitmap>();
+	private final Set<Bitmap> mTracked = Collections.newSetFromMap( new WeakHashMap<Bitmap, Boolean>() );
+
+	private int mHitCount;
+	private int mMissCount;
+	private int mPutCount;
+	private int mEvictionCount;
+
+	/**
+	 * @param maxSize
+	 *            - max size, in bytes, of the bitmaps kept in the pool
+	 */
+	public BitmapPool( long maxSize ) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Mark the bitmap as owned by the library, so that it can be put back in
+	 * the pool once no more displayed
+	 */
+	public synchronized void track( Bitmap bitmap ) {
+		if ( null != bitmap ) {
+			mTracked.add( bitmap );
+		}
+	}
+
+	public synchronized boolean isTracked( Bitmap bitmap ) {
+		return mTracked.contains( bitmap );
+	}
+
+	/**
+	 * Returns a bitmap which can be used to decode an image of the given size
+	 * or null if there's none available. On KitKat and later the returned
+	 * bitmap has already been reconfigured to the requested size.
+	 */
+	public synchronized Bitmap get( int width, int height, Bitmap.Config config ) {
+		if ( width <= 0 || height <= 0 || null == config ) {
+			return null;
+		}
+
+		Bitmap result = null;
+
+		if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ) {
+			final long size = (long) width * height * getBytesPerPixel( config );
+			final int sizeClass = getSizeClass( size );
+			result = removeFromGroup( sizeClass, size );
+			if ( null == result ) {
+				result = removeFromGroup( sizeClass + 1, size );
+			}
+			if ( null != result ) {
+				reconfigure( result, width, height, config );
+			}
+		} else {
+			result = removeFromGroup( getExactKey( width, height, config ), 0 );
+		}
+
+		if ( null != result ) {
+			mHitCount++;
+		} else {
+			mMissCount++;
+		}
+		return result;
+	}
+
+	/**
+	 * Put the bitmap back in the pool. Only mutable bitmaps previously passed
+	 * to {@link #track(Bitmap)} are accepted.
+	 *
+	 * @return true if the bitmap has been added to the pool, in this case the
+	 *         caller must not use it anymore
+	 */
+	public synchronized boolean put( Bitmap bitmap ) {
+		if ( null == bitmap || bitmap.isRecycled() || !bitmap.isMutable() || !mTracked.contains( bitmap ) ) {
+			return false;
+		}
+
+		if ( mLru.contains( bitmap ) ) {
+			return true;
+		}
+
+		final long size = getAllocationSize( bitmap );
+		if ( size > mMaxSize ) {
+			return false;
+		}
+
+		final long key;
+		if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ) {
+			key = getSizeClass( size );
+		} else {
+			key = getExactKey( bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig() );
+		}
+
+		ArrayList<Bitmap> group = mGroups.get( key );
+		if ( null == group ) {
+			group = new ArrayList<Bitmap>();
+			mGroups.put( key, group );
+		}
+		group.add( bitmap );
+		mLru.addLast( bitmap );
+		mSize += size;
+		mPutCount++;
+
+		trimToSize( mMaxSize );
+		return true;
+	}
+
+	/**
+	 * Remove the oldest bitmaps until the pool size is less than maxSize
+	 */
+	public synchronized void trimToSize( long maxSize ) {
+		while ( mSize > maxSize && !mLru.isEmpty() ) {
+			Bitmap bitmap = mLru.removeFirst();
+			for ( ArrayList<Bitmap> group : mGroups.values() ) {
+				if ( group.remove( bitmap ) ) break;
+			}
+			mSize -= getAllocationSize( bitmap );
+			mEvictionCount++;
+			bitmap.recycle();
+		}
+	}
+
+	public synchronized void clear() {
+		trimToSize( 0 );
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized int getPutCount() {
+		return mPutCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	/**
+	 * Returns the size, in bytes, of the bitmaps currently in the pool
+	 */
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	public long getMaxSize() {
+		return mMaxSize;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BitmapPool[size=" + mSize + ", max=" + mMaxSize + ", hits=" + mHitCount + ", misses=" + mMissCount + ", puts=" + mPutCount
+				+ ", evictions=" + mEvictionCount + "]";
+	}
+
+	private Bitmap removeFromGroup( long key, long minSize ) {
+		ArrayList<Bitmap> group = mGroups.get( key );
+		if ( null == group ) {
+			return null;
+		}
+
+		Iterator<Bitmap> iterator = group.iterator();
+		while ( iterator.hasNext() ) {
+			Bitmap bitmap = iterator.next();
+			long size = getAllocationSize( bitmap );
+			if ( size >= minSize ) {
+				iterator.remove();
+				mLru.remove( bitmap );
+				mSize -= size;
+				return bitmap;
+			}
+		}
+		return null;
+	}
+
+	@TargetApi( Build.VERSION_CODES.KITKAT )
+	private static void reconfigure( Bitmap bitmap, int width, int height, Bitmap.Config config ) {
+		bitmap.reconfigure( width, height, config );
+	}
+
+	@TargetApi( Build.VERSION_CODES.KITKAT )
+	static long getAllocationSize( Bitmap bitmap ) {
+		if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ) {
+			return bitmap.getAllocationByteCount();
+		}
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	static int getSizeClass( long size ) {
+		return 64 - Long.numberOfLeadingZeros( Math.max( 0, size - 1 ) );
+	}
+
+	static long getExactKey( int width, int height, Bitmap.Config config ) {
+		return ( (long) width << 32 ) | ( (long) height << 8 ) | config.ordinal();
+	}
+
+	static int getBytesPerPixel( Bitmap.Config config ) {
+		switch ( config ) {
+			case ALPHA_8:
+				return 1;
+			case RGB_565:
+			case ARGB_4444:
+				return 2;
+			default:
+				return 4;
+		}
+	}
+}
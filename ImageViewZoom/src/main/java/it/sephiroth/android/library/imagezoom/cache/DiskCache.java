@@ -0,0 +1,363 @@
+package it.sephiroth.android.library.imagezoom.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Disk cache of decoded (usually downsampled) images. Pixels are stored raw,
+ * so reading an entry is just a memory mapped copy into a {@link Bitmap},
+ * without any image decoding.<br />
+ * The cache is bounded by the size of its files, the least recently used
+ * entries are deleted first.<br />
+ * Keys must identify both the source (including its modification time and
+ * size, see {@link it.sephiroth.android.library.imagezoom.loader.ImageSource#getStamp(Context)})
+ * and the decode parameters.
+ *
+ */
+public class DiskCache {
+
+	static final int MAGIC = 0x49565a31; // IVZ1
+	static final int HEADER_SIZE = 32;
+	static final String EXTENSION = ".px";
+	static final String TMP_EXTENSION = ".tmp";
+
+	static final int CONFIG_ARGB_8888 = 1;
+	static final int CONFIG_RGB_565 = 2;
+	static final int CONFIG_ALPHA_8 = 3;
+
+	/**
+	 * Open a cache in the application cache directory
+	 *
+	 * @param maxSize
+	 *            - max size in bytes
+	 */
+	public static DiskCache open( Context context, long maxSize ) {
+		return new DiskCache( new File( context.getCacheDir(), "imageviewzoom" ), maxSize );
+	}
+
+	private final File mDirectory;
+	private final long mMaxSize;
+	private long mSize;
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>( 16, 0.75f, true );
+	private boolean mInitialized;
+
+	private int mHitCount;
+	private int mMissCount;
+
+	public DiskCache( File directory, long maxSize ) {
+		mDirectory = directory;
+		mMaxSize = maxSize;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * Read a cached image
+	 *
+	 * @param key
+	 *            - the entry key
+	 * @param pool
+	 *            - pool used to get the bitmap the pixels are copied into, can
+	 *            be null
+	 * @return the cached bitmap or null
+	 */
+	public Bitmap get( String key, BitmapPool pool ) {
+		final String name = getFileName( key );
+		final File file = new File( mDirectory, name );
+
+		synchronized ( this ) {
+			init();
+			if ( null == mEntries.get( name ) ) {
+				mMissCount++;
+				return null;
+			}
+		}
+
+		Bitmap bitmap = null;
+		try {
+			bitmap = read( file, pool );
+		} catch ( IOException e ) {
+			bitmap = null;
+		}
+
+		synchronized ( this ) {
+			if ( null == bitmap ) {
+				mMissCount++;
+				removeFile( name );
+			} else {
+				mHitCount++;
+				file.setLastModified( System.currentTimeMillis() );
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Store the bitmap pixels. Hardware bitmaps are not supported.
+	 *
+	 * @return true if the entry has been written
+	 */
+	public boolean put( String key, Bitmap bitmap ) {
+		if ( null == bitmap || bitmap.isRecycled() || getConfigCode( bitmap.getConfig() ) == 0 ) {
+			return false;
+		}
+
+		final long size = HEADER_SIZE + (long) bitmap.getRowBytes() * bitmap.getHeight();
+		if ( size > mMaxSize ) {
+			return false;
+		}
+
+		final String name = getFileName( key );
+		final File file = new File( mDirectory, name );
+		final File tmp = new File( mDirectory, name + "." + Thread.currentThread().getId() + TMP_EXTENSION );
+
+		synchronized ( this ) {
+			init();
+			if ( null != mEntries.get( name ) ) {
+				return true;
+			}
+		}
+
+		try {
+			write( tmp, bitmap, size );
+		} catch ( IOException e ) {
+			tmp.delete();
+			return false;
+		}
+
+		synchronized ( this ) {
+			if ( !tmp.renameTo( file ) ) {
+				tmp.delete();
+				return false;
+			}
+			Long old = mEntries.put( name, size );
+			mSize += size - ( null != old ? old : 0 );
+			trimToSize( mMaxSize );
+		}
+		return true;
+	}
+
+	public synchronized boolean contains( String key ) {
+		init();
+		return mEntries.containsKey( getFileName( key ) );
+	}
+
+	public synchronized void remove( String key ) {
+		init();
+		removeFile( getFileName( key ) );
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache size is less
+	 * than maxSize
+	 */
+	public synchronized void trimToSize( long maxSize ) {
+		init();
+		Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+		while ( mSize > maxSize && iterator.hasNext() ) {
+			Map.Entry<String, Long> entry = iterator.next();
+			iterator.remove();
+			mSize -= entry.getValue();
+			new File( mDirectory, entry.getKey() ).delete();
+		}
+	}
+
+	public synchronized void clear() {
+		trimToSize( 0 );
+	}
+
+	public synchronized long getSize() {
+		init();
+		return mSize;
+	}
+
+	public long getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	private void removeFile( String name ) {
+		Long size = mEntries.remove( name );
+		if ( null != size ) {
+			mSize -= size;
+		}
+		new File( mDirectory, name ).delete();
+	}
+
+	/**
+	 * Build the index from the files on disk, oldest first
+	 */
+	private void init() {
+		if ( mInitialized ) {
+			return;
+		}
+		mInitialized = true;
+
+		if ( !mDirectory.exists() ) {
+			mDirectory.mkdirs();
+		}
+
+		File[] files = mDirectory.listFiles();
+		if ( null == files ) {
+			return;
+		}
+
+		Arrays.sort( files, new Comparator<File>() {
+
+			@Override
+			public int compare( File lhs, File rhs ) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : ( l == r ? 0 : 1 );
+			}
+		} );
+
+		for ( File file : files ) {
+			String name = file.getName();
+			if ( name.endsWith( TMP_EXTENSION ) ) {
+				file.delete();
+			} else if ( name.endsWith( EXTENSION ) ) {
+				mEntries.put( name, file.length() );
+				mSize += file.length();
+			}
+		}
+		trimToSize( mMaxSize );
+	}
+
+	static Bitmap read( File file, BitmapPool pool ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			buffer.order( ByteOrder.nativeOrder() );
+
+			if ( buffer.getInt( 0 ) != MAGIC ) {
+				throw new IOException( "Invalid cache entry" );
+			}
+
+			final int width = buffer.getInt( 4 );
+			final int height = buffer.getInt( 8 );
+			final Bitmap.Config config = getConfig( buffer.getInt( 12 ) );
+			final boolean hasAlpha = buffer.getInt( 16 ) != 0;
+			final int rowBytes = buffer.getInt( 20 );
+
+			if ( null == config || width <= 0 || height <= 0 || channel.size() != HEADER_SIZE + (long) rowBytes * height ) {
+				throw new IOException( "Invalid cache entry" );
+			}
+
+			Bitmap bitmap = null != pool ? pool.get( width, height, config ) : null;
+			if ( null == bitmap ) {
+				bitmap = Bitmap.createBitmap( width, height, config );
+			}
+
+			if ( bitmap.getRowBytes() != rowBytes ) {
+				if ( null == pool || !pool.put( bitmap ) ) bitmap.recycle();
+				throw new IOException( "Invalid cache entry" );
+			}
+
+			buffer.position( HEADER_SIZE );
+			bitmap.copyPixelsFromBuffer( buffer );
+			setHasAlpha( bitmap, hasAlpha );
+
+			if ( null != pool ) {
+				pool.track( bitmap );
+			}
+			return bitmap;
+		} finally {
+			raf.close();
+		}
+	}
+
+	static void write( File file, Bitmap bitmap, long size ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try {
+			raf.setLength( size );
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+			buffer.order( ByteOrder.nativeOrder() );
+
+			buffer.putInt( 0, MAGIC );
+			buffer.putInt( 4, bitmap.getWidth() );
+			buffer.putInt( 8, bitmap.getHeight() );
+			buffer.putInt( 12, getConfigCode( bitmap.getConfig() ) );
+			buffer.putInt( 16, bitmap.hasAlpha() ? 1 : 0 );
+			buffer.putInt( 20, bitmap.getRowBytes() );
+
+			buffer.position( HEADER_SIZE );
+			bitmap.copyPixelsToBuffer( buffer );
+			buffer.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	@TargetApi( Build.VERSION_CODES.HONEYCOMB_MR1 )
+	static void setHasAlpha( Bitmap bitmap, boolean hasAlpha ) {
+		if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1 ) {
+			bitmap.setHasAlpha( hasAlpha );
+		}
+	}
+
+	static int getConfigCode( Bitmap.Config config ) {
+		if ( Bitmap.Config.ARGB_8888 == config ) return CONFIG_ARGB_8888;
+		if ( Bitmap.Config.RGB_565 == config ) return CONFIG_RGB_565;
+		if ( Bitmap.Config.ALPHA_8 == config ) return CONFIG_ALPHA_8;
+		return 0;
+	}
+
+	static Bitmap.Config getConfig( int code ) {
+		switch ( code ) {
+			case CONFIG_ARGB_8888:
+				return Bitmap.Config.ARGB_8888;
+			case CONFIG_RGB_565:
+				return Bitmap.Config.RGB_565;
+			case CONFIG_ALPHA_8:
+				return Bitmap.Config.ALPHA_8;
+			default:
+				return null;
+		}
+	}
+
+	static String getFileName( String key ) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance( "MD5" );
+			byte[] hash = digest.digest( key.getBytes( "UTF-8" ) );
+			StringBuilder builder = new StringBuilder( hash.length * 2 + EXTENSION.length() );
+			for ( byte b : hash ) {
+				builder.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) );
+				builder.append( Character.forDigit( b & 0xf, 16 ) );
+			}
+			return builder.append( EXTENSION ).toString();
+		} catch ( NoSuchAlgorithmException e ) {
+			return Integer.toHexString( key.hashCode() ) + EXTENSION;
+		} catch ( UnsupportedEncodingException e ) {
+			return Integer.toHexString( key.hashCode() ) + EXTENSION;
+		}
+	}
+}
@@ -0,0 +1,429 @@
+package it.sephiroth.android.library.imagezoom.cache;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+/**
+ * Memory cache of decoded images, shared by all the views. The cache is
+ * bounded by the size in bytes of the bitmaps and uses a LRU eviction policy.
+ * Pinned bitmaps (usually the ones currently displayed) are never evicted.<br />
+ * Bitmaps in use must be acquired: once evicted and no more in use they are
+ * given to the {@link BitmapPool}, if any.<br />
+ * The cache also remembers the size of the sources it has seen, so that a
+ * key can be computed without reading the image again.
+ *
+ */
+public class MemoryCache {
+
+	static final int MAX_BOUNDS_ENTRIES = 256;
+
+	private static MemoryCache sDefault;
+
+	/**
+	 * Returns the cache shared by all the views, which uses up to 1/8 of the
+	 * available heap
+	 */
+	public static synchronized MemoryCache getDefault() {
+		if ( null == sDefault ) {
+			sDefault = new MemoryCache( Runtime.getRuntime().maxMemory() / 8, BitmapPool.getDefault() );
+		}
+		return sDefault;
+	}
+
+	/**
+	 * Identity of a decoded image: the source plus the decode parameters
+	 */
+	public static final class Key {
+
+		final String mSource;
+		final int mSampleSize;
+		final int mWidth;
+		final int mHeight;
+		final Bitmap.Config mConfig;
+		final Rect mRegion;
+
+		/**
+		 * @param source
+		 *            - the source key
+		 * @param sampleSize
+		 *            - sample size used to decode
+		 * @param width
+		 *            - the decoded width
+		 * @param height
+		 *            - the decoded height
+		 * @param config
+		 *            - the decoded config
+		 * @param region
+		 *            - the decoded region, or null if the whole image
+		 */
+		public Key( String source, int sampleSize, int width, int height, Bitmap.Config config, Rect region ) {
+			mSource = source;
+			mSampleSize = sampleSize;
+			mWidth = width;
+			mHeight = height;
+			mConfig = config;
+			mRegion = null != region ? new Rect( region ) : null;
+		}
+
+		/**
+		 * Build the key from already setup decode options
+		 *
+		 * @see it.sephiroth.android.library.imagezoom.graphics.BitmapDecoder#setupOptions(BitmapFactory.Options,
+		 *      int, int)
+		 */
+		public Key( String source, BitmapFactory.Options options, Rect region ) {
+			this( source, options.inSampleSize, getDecodedWidth( options ), getDecodedHeight( options ),
+					null != options.inPreferredConfig ? options.inPreferredConfig : Bitmap.Config.ARGB_8888, region );
+		}
+
+		public String getSource() {
+			return mSource;
+		}
+
+		public int getWidth() {
+			return mWidth;
+		}
+
+		public int getHeight() {
+			return mHeight;
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if ( this == o ) return true;
+			if ( !( o instanceof Key ) ) return false;
+			Key other = (Key) o;
+			return mSampleSize == other.mSampleSize && mWidth == other.mWidth && mHeight == other.mHeight && mConfig == other.mConfig
+					&& mSource.equals( other.mSource ) && ( null == mRegion ? null == other.mRegion : mRegion.equals( other.mRegion ) );
+		}
+
+		@Override
+		public int hashCode() {
+			int result = mSource.hashCode();
+			result = 31 * result + mSampleSize;
+			result = 31 * result + mWidth;
+			result = 31 * result + mHeight;
+			result = 31 * result + ( null != mConfig ? mConfig.hashCode() : 0 );
+			result = 31 * result + ( null != mRegion ? mRegion.hashCode() : 0 );
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return mSource + "@" + mWidth + "x" + mHeight + "/" + mSampleSize + "/" + mConfig + ( null != mRegion ? mRegion.toString() : "" );
+		}
+	}
+
+	/**
+	 * Original size and type of a source
+	 */
+	public static final class Bounds {
+
+		public final int width;
+		public final int height;
+		public final String mimeType;
+
+		public Bounds( int width, int height, String mimeType ) {
+			this.width = width;
+			this.height = height;
+			this.mimeType = mimeType;
+		}
+	}
+
+	static int getDecodedWidth( BitmapFactory.Options options ) {
+		final int sampleSize = Math.max( 1, options.inSampleSize );
+		int width = ( options.outWidth + sampleSize - 1 ) / sampleSize;
+		if ( options.inScaled && options.inDensity > 0 ) {
+			width = (int) ( width * (float) options.inTargetDensity / options.inDensity + 0.5f );
+		}
+		return width;
+	}
+
+	static int getDecodedHeight( BitmapFactory.Options options ) {
+		final int sampleSize = Math.max( 1, options.inSampleSize );
+		int height = ( options.outHeight + sampleSize - 1 ) / sampleSize;
+		if ( options.inScaled && options.inDensity > 0 ) {
+			height = (int) ( height * (float) options.inTargetDensity / options.inDensity + 0.5f );
+		}
+		return height;
+	}
+
+	static final class Entry {
+
+		final Key key;
+		final Bitmap bitmap;
+		final long size;
+		int pins;
+		int refs;
+		boolean evicted;
+
+		Entry( Key key, Bitmap bitmap ) {
+			this.key = key;
+			this.bitmap = bitmap;
+			this.size = BitmapPool.getAllocationSize( bitmap );
+		}
+	}
+
+	private final long mMaxSize;
+	private long mSize;
+	private final BitmapPool mBitmapPool;
+
+	private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>( 16, 0.75f, true );
+	private final IdentityHashMap<Bitmap, Entry> mBitmaps = new IdentityHashMap<Bitmap, Entry>();
+	private final LinkedHashMap<String, Bounds> mBounds = new LinkedHashMap<String, Bounds>( 16, 0.75f, true ) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, Bounds> eldest ) {
+			return size() > MAX_BOUNDS_ENTRIES;
+		}
+	};
+
+	private int mHitCount;
+	private int mMissCount;
+	private int mEvictionCount;
+
+	/**
+	 * @param maxSize
+	 *            - max size in bytes
+	 * @param pool
+	 *            - pool which receives the evicted bitmaps, can be null
+	 */
+	public MemoryCache( long maxSize, BitmapPool pool ) {
+		mMaxSize = maxSize;
+		mBitmapPool = pool;
+	}
+
+	public synchronized Bitmap get( Key key ) {
+		Entry entry = mEntries.get( key );
+		if ( null != entry ) {
+			mHitCount++;
+			return entry.bitmap;
+		}
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * Returns the cached bitmap, already acquired, or null
+	 *
+	 * @see #acquire(Bitmap)
+	 */
+	public synchronized Bitmap acquire( Key key ) {
+		Bitmap bitmap = get( key );
+		if ( null != bitmap ) {
+			acquire( bitmap );
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Add a bitmap to the cache. If a pinned bitmap is already cached with the
+	 * same key the new one is not added
+	 *
+	 * @return true if the bitmap has been added
+	 */
+	public synchronized boolean put( Key key, Bitmap bitmap ) {
+		return put( key, bitmap, false );
+	}
+
+	/**
+	 * @param acquire
+	 *            - if true the bitmap is also acquired
+	 * @see #put(Key, Bitmap)
+	 * @see #acquire(Bitmap)
+	 */
+	public synchronized boolean put( Key key, Bitmap bitmap, boolean acquire ) {
+		if ( null == bitmap || mBitmaps.containsKey( bitmap ) ) {
+			return false;
+		}
+
+		Entry old = mEntries.get( key );
+		if ( null != old ) {
+			if ( old.pins > 0 ) {
+				return false;
+			}
+			evict( old );
+		}
+
+		Entry entry = new Entry( key, bitmap );
+		if ( entry.size > mMaxSize ) {
+			return false;
+		}
+
+		mEntries.put( key, entry );
+		mBitmaps.put( bitmap, entry );
+		mSize += entry.size;
+		if ( acquire ) {
+			entry.refs++;
+		}
+		trimToSize( mMaxSize );
+		return true;
+	}
+
+	/**
+	 * Returns true if the bitmap belongs to the cache, even if already
+	 * evicted but still in use
+	 */
+	public synchronized boolean contains( Bitmap bitmap ) {
+		return mBitmaps.containsKey( bitmap );
+	}
+
+	/**
+	 * Mark the bitmap as in use, so that it's not reused once evicted. Must be
+	 * balanced by {@link #release(Bitmap)}
+	 *
+	 * @return false if the bitmap doesn't belong to the cache
+	 */
+	public synchronized boolean acquire( Bitmap bitmap ) {
+		Entry entry = mBitmaps.get( bitmap );
+		if ( null == entry ) {
+			return false;
+		}
+		entry.refs++;
+		return true;
+	}
+
+	/**
+	 * @return false if the bitmap doesn't belong to the cache
+	 */
+	public synchronized boolean release( Bitmap bitmap ) {
+		Entry entry = mBitmaps.get( bitmap );
+		if ( null == entry ) {
+			return false;
+		}
+
+		if ( entry.refs > 0 && --entry.refs == 0 && entry.evicted ) {
+			mBitmaps.remove( bitmap );
+			recycle( entry );
+		}
+		return true;
+	}
+
+	/**
+	 * Prevent the bitmap from being evicted. Calls can be nested and must be
+	 * balanced by {@link #unpin(Bitmap)}
+	 *
+	 * @return false if the bitmap is not in the cache
+	 */
+	public synchronized boolean pin( Bitmap bitmap ) {
+		Entry entry = mBitmaps.get( bitmap );
+		if ( null == entry ) {
+			return false;
+		}
+		entry.pins++;
+		return true;
+	}
+
+	/**
+	 * @return false if the bitmap is not in the cache
+	 */
+	public synchronized boolean unpin( Bitmap bitmap ) {
+		Entry entry = mBitmaps.get( bitmap );
+		if ( null == entry ) {
+			return false;
+		}
+
+		if ( entry.pins > 0 && --entry.pins == 0 ) {
+			trimToSize( mMaxSize );
+		}
+		return true;
+	}
+
+	/**
+	 * Remember the original size and mime type of a source
+	 */
+	public synchronized void putBounds( String source, int width, int height, String mimeType ) {
+		mBounds.put( source, new Bounds( width, height, mimeType ) );
+	}
+
+	/**
+	 * Returns the original size of the source, if known, or null
+	 */
+	public synchronized Bounds getBounds( String source ) {
+		return mBounds.get( source );
+	}
+
+	/**
+	 * Evict the least recently used and not pinned bitmaps until the cache size
+	 * is less than maxSize
+	 */
+	public synchronized void trimToSize( long maxSize ) {
+		if ( mSize <= maxSize ) {
+			return;
+		}
+
+		Iterator<Entry> iterator = mEntries.values().iterator();
+		while ( mSize > maxSize && iterator.hasNext() ) {
+			Entry entry = iterator.next();
+			if ( entry.pins > 0 ) {
+				continue;
+			}
+			iterator.remove();
+			detach( entry );
+			mEvictionCount++;
+		}
+	}
+
+	public synchronized void evictAll() {
+		trimToSize( 0 );
+	}
+
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	public long getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MemoryCache[size=" + mSize + ", max=" + mMaxSize + ", entries=" + mEntries.size() + ", hits=" + mHitCount + ", misses="
+				+ mMissCount + ", evictions=" + mEvictionCount + "]";
+	}
+
+	private void evict( Entry entry ) {
+		mEntries.remove( entry.key );
+		detach( entry );
+	}
+
+	/**
+	 * The entry is no more in the cache, its bitmap is given to the pool
+	 * unless still in use
+	 */
+	private void detach( Entry entry ) {
+		mSize -= entry.size;
+		if ( entry.refs > 0 ) {
+			entry.evicted = true;
+		} else {
+			mBitmaps.remove( entry.bitmap );
+			recycle( entry );
+		}
+	}
+
+	private void recycle( Entry entry ) {
+		if ( null != mBitmapPool ) {
+			mBitmapPool.put( entry.bitmap );
+		}
+	}
+}
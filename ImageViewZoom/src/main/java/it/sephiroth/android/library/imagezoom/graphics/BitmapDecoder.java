@@ -0,0 +1,283 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import it.sephiroth.android.library.imagezoom.cache.BitmapPool;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.os.Build;
+
+/**
+ * Decode bitmaps at the smallest size which still fills the required size,
+ * using both the inSampleSize and the density scaling of
+ * {@link BitmapFactory.Options}. When a {@link BitmapPool} is passed the
+ * decoded bitmap reuses, if possible, the memory of a pooled one.
+ *
+ */
+public final class BitmapDecoder {
+
+	/** max bytes read while decoding the image bounds */
+	static final int MARK_LIMIT = 1024 * 1024;
+
+	/** don't bother scaling if the saving is less than this */
+	static final float MIN_DENSITY_SCALE = 0.9f;
+
+	private BitmapDecoder() {}
+
+	/**
+	 * Opens the image again from its beginning, used when a decode must be
+	 * retried and the stream cannot be rewound
+	 */
+	public interface StreamOpener {
+
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * Returns the largest power of 2 sample size which keeps the decoded image
+	 * at least as big as the required size
+	 */
+	public static int calculateInSampleSize( int width, int height, int reqWidth, int reqHeight ) {
+		int sampleSize = 1;
+		if ( reqWidth <= 0 || reqHeight <= 0 ) {
+			return sampleSize;
+		}
+
+		while ( ( width / ( sampleSize * 2 ) ) >= reqWidth && ( height / ( sampleSize * 2 ) ) >= reqHeight ) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Setup the options sample size and density scaling for the given source
+	 * and required size
+	 *
+	 * @param options
+	 *            - options already containing the image bounds
+	 */
+	public static void setupOptions( BitmapFactory.Options options, int reqWidth, int reqHeight ) {
+		final int width = options.outWidth;
+		final int height = options.outHeight;
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = calculateInSampleSize( width, height, reqWidth, reqHeight );
+		options.inScaled = false;
+
+		if ( reqWidth <= 0 || reqHeight <= 0 ) {
+			return;
+		}
+
+		final int sampledWidth = width / options.inSampleSize;
+		final int sampledHeight = height / options.inSampleSize;
+		final float ratio = Math.max( (float) reqWidth / sampledWidth, (float) reqHeight / sampledHeight );
+
+		if ( ratio < MIN_DENSITY_SCALE ) {
+			options.inScaled = true;
+			options.inDensity = sampledWidth;
+			options.inTargetDensity = (int) Math.ceil( sampledWidth * ratio );
+		}
+	}
+
+	/**
+	 * Decode the stream so that the resulting bitmap is not smaller than the
+	 * required size. The stream is read twice, first for the image bounds then
+	 * for the pixels
+	 *
+	 * @return the decoded bitmap or null if the stream cannot be decoded
+	 */
+	public static Bitmap decodeStream( InputStream is, int reqWidth, int reqHeight ) {
+		return decodeStream( is, null, reqWidth, reqHeight, null, null );
+	}
+
+	/**
+	 * @param pool
+	 *            - pool used for the inBitmap option, the returned bitmap is
+	 *            tracked by the pool. Can be null
+	 * @see #decodeStream(InputStream, int, int)
+	 */
+	public static Bitmap decodeStream( InputStream is, int reqWidth, int reqHeight, BitmapPool pool ) {
+		return decodeStream( is, null, reqWidth, reqHeight, pool, null );
+	}
+
+	/**
+	 * Decode the stream at the size required by the given target
+	 *
+	 * @see #decodeStream(InputStream, int, int)
+	 */
+	public static Bitmap decodeStream( InputStream is, IDecodeTarget target ) {
+		return decodeStream( is, target, 0, 0, null, null );
+	}
+
+	/**
+	 * @see #decodeStream(InputStream, IDecodeTarget)
+	 * @see #decodeStream(InputStream, int, int, BitmapPool)
+	 */
+	public static Bitmap decodeStream( InputStream is, IDecodeTarget target, BitmapPool pool ) {
+		return decodeStream( is, target, 0, 0, pool, null );
+	}
+
+	/**
+	 * @param outSourceSize
+	 *            - if not null, receives the size of the source image
+	 * @see #decodeStream(InputStream, IDecodeTarget, BitmapPool)
+	 */
+	public static Bitmap decodeStream( InputStream is, IDecodeTarget target, BitmapPool pool, Point outSourceSize ) {
+		return decodeStream( is, target, 0, 0, pool, outSourceSize );
+	}
+
+	private static Bitmap decodeStream( InputStream is, IDecodeTarget target, int reqWidth, int reqHeight, BitmapPool pool,
+			Point outSourceSize ) {
+		if ( !is.markSupported() ) {
+			is = new BufferedInputStream( is );
+		}
+
+		BitmapFactory.Options options = decodeBounds( is );
+		if ( null == options ) {
+			return null;
+		}
+		if ( null != outSourceSize ) {
+			outSourceSize.set( options.outWidth, options.outHeight );
+		}
+
+		if ( null != target ) {
+			Point size = new Point();
+			target.getDecodeSize( options.outWidth, options.outHeight, size );
+			reqWidth = size.x;
+			reqHeight = size.y;
+		}
+
+		setupOptions( options, reqWidth, reqHeight );
+		return decode( is, options, pool );
+	}
+
+	/**
+	 * Read the image bounds. The stream must support mark/reset and is
+	 * positioned back at its beginning
+	 *
+	 * @return the options containing the image bounds, or null if the stream
+	 *         is not a valid image
+	 */
+	public static BitmapFactory.Options decodeBounds( InputStream is ) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+
+		is.mark( MARK_LIMIT );
+		BitmapFactory.decodeStream( is, null, options );
+
+		try {
+			is.reset();
+		} catch ( IOException e ) {
+			return null;
+		}
+
+		if ( options.outWidth <= 0 || options.outHeight <= 0 ) {
+			return null;
+		}
+		return options;
+	}
+
+	/**
+	 * Decode the stream using the given options, already setup with
+	 * {@link #setupOptions(BitmapFactory.Options, int, int)}
+	 *
+	 * @param pool
+	 *            - can be null
+	 */
+	public static Bitmap decode( InputStream is, BitmapFactory.Options options, BitmapPool pool ) {
+		return decode( is, options, pool, null );
+	}
+
+	/**
+	 * @param opener
+	 *            - used if the pooled bitmap is rejected once the stream has
+	 *            been read past its mark. Can be null
+	 * @see #decode(InputStream, BitmapFactory.Options, BitmapPool)
+	 */
+	public static Bitmap decode( InputStream is, BitmapFactory.Options options, BitmapPool pool, StreamOpener opener ) {
+		if ( null == pool ) {
+			return BitmapFactory.decodeStream( is, null, options );
+		}
+
+		Bitmap bitmap;
+		setupInBitmap( options, pool );
+		try {
+			bitmap = BitmapFactory.decodeStream( is, null, options );
+		} catch ( IllegalArgumentException e ) {
+			// the pooled bitmap cannot be reused, decode again without it
+			pool.put( options.inBitmap );
+			options.inBitmap = null;
+			bitmap = decodeAgain( is, options, opener );
+		}
+
+		pool.track( bitmap );
+		return bitmap;
+	}
+
+	/**
+	 * Decode from the beginning of the stream, or of a new one if it has been
+	 * read past its mark limit
+	 */
+	private static Bitmap decodeAgain( InputStream is, BitmapFactory.Options options, StreamOpener opener ) {
+		try {
+			is.reset();
+			return BitmapFactory.decodeStream( is, null, options );
+		} catch ( IOException e ) {
+			if ( null == opener ) {
+				return null;
+			}
+		}
+
+		InputStream reopened = null;
+		try {
+			reopened = opener.open();
+			return BitmapFactory.decodeStream( reopened, null, options );
+		} catch ( IOException e ) {
+			return null;
+		} finally {
+			if ( null != reopened ) {
+				try {
+					reopened.close();
+				} catch ( IOException e ) {}
+			}
+		}
+	}
+
+	/**
+	 * Set the inBitmap option using a bitmap from the pool, if the platform
+	 * can reuse a bitmap for the decode described by options
+	 */
+	public static void setupInBitmap( BitmapFactory.Options options, BitmapPool pool ) {
+		if ( Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB ) {
+			return;
+		}
+
+		Bitmap.Config config = null != options.inPreferredConfig ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+		if ( !DecodePolicy.isReusable( config ) ) {
+			return;
+		}
+
+		options.inMutable = true;
+
+		if ( Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && ( options.inSampleSize != 1 || options.inScaled ) ) {
+			// before KitKat only same size bitmaps can be reused
+			return;
+		}
+
+		final int sampleSize = Math.max( 1, options.inSampleSize );
+		int width = ( options.outWidth + sampleSize - 1 ) / sampleSize;
+		int height = ( options.outHeight + sampleSize - 1 ) / sampleSize;
+
+		if ( options.inScaled && options.inDensity > 0 ) {
+			final float scale = (float) options.inTargetDensity / options.inDensity;
+			width = (int) ( width * scale + 0.5f );
+			height = (int) ( height * scale + 0.5f );
+		}
+
+		options.inBitmap = pool.get( width, height, config );
+	}
+}
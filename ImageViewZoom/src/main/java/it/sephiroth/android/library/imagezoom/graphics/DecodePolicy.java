@@ -0,0 +1,98 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Chooses the pixel format images are decoded to.<br />
+ * RGB_565 halves the memory of opaque images but loses colour precision, so
+ * it's only used for images decoded smaller than their original size: at the
+ * max zoom they are never magnified and the dithering is not visible.<br />
+ * Hardware bitmaps (API 26+) live in graphics memory only and are never
+ * uploaded again, but they cannot be reused by the
+ * {@link it.sephiroth.android.library.imagezoom.cache.BitmapPool}, stored in
+ * the disk cache or used to build a pyramid.
+ *
+ */
+public class DecodePolicy {
+
+	/** always ARGB_8888, the default */
+	public static final DecodePolicy QUALITY = new DecodePolicy( false, false );
+
+	/** RGB_565 for opaque images when the zoom allows it */
+	public static final DecodePolicy LOW_MEMORY = new DecodePolicy( true, false );
+
+	/** hardware bitmaps where available, otherwise like {@link #LOW_MEMORY} */
+	public static final DecodePolicy HARDWARE = new DecodePolicy( true, true );
+
+	protected final boolean mAllowRgb565;
+	protected final boolean mAllowHardware;
+
+	public DecodePolicy( boolean allowRgb565, boolean allowHardware ) {
+		mAllowRgb565 = allowRgb565;
+		mAllowHardware = allowHardware;
+	}
+
+	public boolean isRgb565Allowed() {
+		return mAllowRgb565;
+	}
+
+	public boolean isHardwareAllowed() {
+		return mAllowHardware;
+	}
+
+	/**
+	 * Set the preferred config of the options
+	 *
+	 * @param options
+	 *            - options containing the image bounds, already setup with
+	 *            {@link BitmapDecoder#setupOptions(BitmapFactory.Options, int, int)}
+	 */
+	public void setupConfig( BitmapFactory.Options options ) {
+		if ( mAllowHardware && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
+			options.inPreferredConfig = getHardwareConfig();
+			options.inMutable = false;
+		} else if ( mAllowRgb565 && isOpaque( options ) && isDownsampled( options ) ) {
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+			options.inDither = true;
+		} else {
+			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		}
+	}
+
+	/**
+	 * Returns true if the image, of which only the bounds have been decoded,
+	 * is known to have no alpha channel
+	 */
+	public static boolean isOpaque( BitmapFactory.Options options ) {
+		return "image/jpeg".equals( options.outMimeType );
+	}
+
+	/**
+	 * Returns true if the options decode the image smaller than its original
+	 * size
+	 */
+	public static boolean isDownsampled( BitmapFactory.Options options ) {
+		return options.inSampleSize > 1 || ( options.inScaled && options.inTargetDensity < options.inDensity );
+	}
+
+	/**
+	 * Returns true if the bitmaps of the given config can be decoded into a
+	 * pooled bitmap
+	 */
+	public static boolean isReusable( Bitmap.Config config ) {
+		return Build.VERSION.SDK_INT < Build.VERSION_CODES.O || config != getHardwareConfig();
+	}
+
+	@TargetApi( Build.VERSION_CODES.O )
+	static Bitmap.Config getHardwareConfig() {
+		return Bitmap.Config.HARDWARE;
+	}
+
+	@Override
+	public String toString() {
+		return "DecodePolicy[rgb565=" + mAllowRgb565 + ", hardware=" + mAllowHardware + "]";
+	}
+}
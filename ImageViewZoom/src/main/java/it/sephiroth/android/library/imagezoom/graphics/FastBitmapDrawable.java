@@ -1,15 +1,26 @@
 package it.sephiroth.android.library.imagezoom.graphics;
 
+import it.sephiroth.android.library.imagezoom.loader.ImageLoader;
+
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
+import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Point;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
 
 /**
  * Fast bitmap drawable. Does not support states. it only
@@ -17,13 +28,59 @@ import android.graphics.drawable.Drawable;
  * @author alessandro
  *
  */
-public class FastBitmapDrawable extends Drawable implements IBitmapDrawable {
+public class FastBitmapDrawable extends Drawable implements IBitmapDrawable, IRenderQualityDrawable, ISampledDrawable {
+
+	/** levels are not built below this size */
+	protected static final int MIN_LEVEL_SIZE = 64;
+	protected static final int MAX_LEVELS = 8;
+
+	private static final Handler sHandler = new Handler( Looper.getMainLooper() );
 
 	protected Bitmap mBitmap;
 	protected Paint mPaint;
+	protected int mIntrinsicWidth;
+	protected int mIntrinsicHeight;
+	protected int mSourceWidth;
+	protected int mSourceHeight;
+	protected final Rect mDstRect = new Rect();
+
+	protected boolean mClipToViewport = true;
+	protected final Rect mVisibleRect = new Rect();
+	protected final Rect mSrcRect = new Rect();
+	protected final RectF mVisibleDstRect = new RectF();
+
+	protected boolean mPyramidEnabled;
+	protected Executor mPyramidExecutor;
+	protected volatile Bitmap[] mLevels;
+	protected boolean mBuildingPyramid;
+	protected volatile int mPyramidGeneration;
+	/** builds still reading the bitmap, main thread only */
+	protected int mPyramidBuilds;
+	protected final List<Runnable> mPyramidIdleActions = new ArrayList<Runnable>();
+	protected final Matrix mDrawMatrix = new Matrix();
+	protected final float[] mDrawValues = new float[9];
+
+	protected RenderQuality mRenderQuality = RenderQuality.HIGH;
 
 	public FastBitmapDrawable( Bitmap b ) {
+		this( b, b.getWidth(), b.getHeight() );
+	}
+
+	/**
+	 * Display the bitmap stretched to the given size. Useful to show a low
+	 * resolution preview in place of the full image, which will later replace
+	 * it without changing the image bounds
+	 *
+	 * @param intrinsicWidth
+	 *            - the width reported by {@link #getIntrinsicWidth()}
+	 * @param intrinsicHeight
+	 *            - the height reported by {@link #getIntrinsicHeight()}
+	 */
+	public FastBitmapDrawable( Bitmap b, int intrinsicWidth, int intrinsicHeight ) {
 		mBitmap = b;
+		mIntrinsicWidth = intrinsicWidth;
+		mIntrinsicHeight = intrinsicHeight;
+		mDstRect.set( 0, 0, intrinsicWidth, intrinsicHeight );
 		mPaint = new Paint();
 		mPaint.setDither( true );
 		mPaint.setFilterBitmap( true );
@@ -33,14 +90,399 @@ public class FastBitmapDrawable extends Drawable implements IBitmapDrawable {
 		this(BitmapFactory.decodeStream(is));
 	}
 
+	/**
+	 * Decode the stream to the smallest bitmap which is not smaller than
+	 * reqWidth x reqHeight
+	 *
+	 * @see BitmapDecoder#decodeStream(InputStream, int, int)
+	 */
+	public FastBitmapDrawable( Resources res, InputStream is, int reqWidth, int reqHeight ) {
+		this( BitmapDecoder.decodeStream( is, reqWidth, reqHeight ) );
+	}
+
+	/**
+	 * Decode the stream only at the size which can be displayed by the target
+	 * (usually the {@link it.sephiroth.android.library.imagezoom.ImageViewTouchBase}
+	 * which will display this drawable)
+	 *
+	 * @see BitmapDecoder#decodeStream(InputStream, IDecodeTarget)
+	 */
+	public FastBitmapDrawable( Resources res, InputStream is, IDecodeTarget target ) {
+		this( res, is, target, new Point() );
+	}
+
+	private FastBitmapDrawable( Resources res, InputStream is, IDecodeTarget target, Point sourceSize ) {
+		this( BitmapDecoder.decodeStream( is, target, null, sourceSize ) );
+		setSourceSize( sourceSize.x, sourceSize.y );
+	}
+
+	/**
+	 * Set the size of the image the bitmap was decoded from, when it has been
+	 * downsampled. By default it's the intrinsic size
+	 */
+	public void setSourceSize( int width, int height ) {
+		mSourceWidth = width;
+		mSourceHeight = height;
+	}
+
+	@Override
+	public int getSourceWidth() {
+		return mSourceWidth > 0 ? mSourceWidth : mIntrinsicWidth;
+	}
+
+	@Override
+	public int getSourceHeight() {
+		return mSourceHeight > 0 ? mSourceHeight : mIntrinsicHeight;
+	}
+
 	@Override
 	public void draw( Canvas canvas ) {
-		canvas.drawBitmap( mBitmap, 0.0f, 0.0f, mPaint );
+		if ( mClipToViewport && !updateVisibleRect( canvas ) ) {
+			// nothing visible
+			return;
+		}
+
+		Bitmap bitmap = mBitmap;
+		final float scale = getDrawScale( canvas );
+		if ( mPyramidEnabled ) {
+			bitmap = getLevelBitmap( getLevel( scale ) + mRenderQuality.levelBias );
+		}
+
+		// at an integral scale nearest sampling gives the exact result
+		final boolean exact = bitmap == mBitmap && isPixelAligned( scale );
+		if ( exact && mRenderQuality.filter ) {
+			mPaint.setFilterBitmap( false );
+		}
+
+		if ( mClipToViewport && ( mVisibleRect.width() < mIntrinsicWidth || mVisibleRect.height() < mIntrinsicHeight ) ) {
+			drawVisibleRect( canvas, bitmap );
+		} else if ( bitmap != mBitmap || isScaled() ) {
+			canvas.drawBitmap( bitmap, null, mDstRect, mPaint );
+		} else {
+			canvas.drawBitmap( mBitmap, 0.0f, 0.0f, mPaint );
+		}
+
+		if ( exact && mRenderQuality.filter ) {
+			mPaint.setFilterBitmap( true );
+		}
+	}
+
+	/**
+	 * Set the paint flags and the pyramid level bias
+	 */
+	@Override
+	public void setRenderQuality( RenderQuality quality ) {
+		if ( null == quality || quality == mRenderQuality ) {
+			return;
+		}
+		mRenderQuality = quality;
+		mPaint.setFilterBitmap( quality.filter );
+		mPaint.setDither( quality.dither );
+		invalidateSelf();
+	}
+
+	public RenderQuality getRenderQuality() {
+		return mRenderQuality;
+	}
+
+	/**
+	 * Returns true if the bitmap pixels, drawn at the given scale with the
+	 * last canvas matrix read by {@link #getDrawScale(Canvas)}, fall exactly on
+	 * screen pixels
+	 */
+	protected boolean isPixelAligned( float scale ) {
+		final float[] v = mDrawValues;
+		if ( v[Matrix.MSKEW_X] != 0 || v[Matrix.MSKEW_Y] != 0 || v[Matrix.MSCALE_X] != v[Matrix.MSCALE_Y] || scale < 1 ) {
+			return false;
+		}
+		return isIntegral( scale ) && isIntegral( v[Matrix.MTRANS_X] ) && isIntegral( v[Matrix.MTRANS_Y] );
+	}
+
+	private static boolean isIntegral( float value ) {
+		return Math.abs( value - Math.round( value ) ) < 0.001f;
+	}
+
+	/**
+	 * Enable the pyramid mode: when the bitmap is drawn scaled down, a half,
+	 * quarter (and so on) resolution copy is drawn instead of the full bitmap.
+	 * The levels are built in background the first time they're needed, and
+	 * take up to 1/3 more memory than the bitmap itself.
+	 *
+	 * @see #setPyramidExecutor(Executor)
+	 */
+	public void setPyramidEnabled( boolean enabled ) {
+		if ( mPyramidEnabled == enabled ) {
+			return;
+		}
+		mPyramidEnabled = enabled;
+		if ( !enabled ) {
+			releasePyramid();
+		}
+		invalidateSelf();
+	}
+
+	public boolean isPyramidEnabled() {
+		return mPyramidEnabled;
+	}
+
+	/**
+	 * Set the executor used to build the pyramid levels. If null the
+	 * {@link ImageLoader#getDefaultExecutor()} is used
+	 */
+	public void setPyramidExecutor( Executor executor ) {
+		mPyramidExecutor = executor;
+	}
+
+	public Executor getPyramidExecutor() {
+		return mPyramidExecutor;
+	}
+
+	/**
+	 * Returns the number of levels built so far, including the full
+	 * resolution bitmap
+	 */
+	public int getLevelCount() {
+		Bitmap[] levels = mLevels;
+		return null != levels ? levels.length : 1;
+	}
+
+	/**
+	 * Recycle the pyramid levels. They will be built again if needed
+	 */
+	public void releasePyramid() {
+		mPyramidGeneration++;
+		mBuildingPyramid = false;
+
+		Bitmap[] levels = mLevels;
+		mLevels = null;
+		if ( null != levels ) {
+			recycleLevels( levels );
+		}
+	}
+
+	/**
+	 * Recycle the pyramid levels, then run the action once no build reads the
+	 * bitmap anymore: right away, or when the builds in flight end. Use it to
+	 * give the bitmap back to a cache or a pool, which could hand it to a
+	 * decoder while it's still being scaled down
+	 */
+	public void releasePyramid( Runnable whenIdle ) {
+		releasePyramid();
+		if ( mPyramidBuilds > 0 ) {
+			mPyramidIdleActions.add( whenIdle );
+		} else {
+			whenIdle.run();
+		}
+	}
+
+	/**
+	 * Returns the number of screen pixels per bitmap pixel on the x axis, as
+	 * defined by the canvas matrix. Below 1 the bitmap is minified, see
+	 * {@link #getLevel(float)}
+	 */
+	@SuppressWarnings( "deprecation" )
+	protected float getDrawScale( Canvas canvas ) {
+		canvas.getMatrix( mDrawMatrix );
+		mDrawMatrix.getValues( mDrawValues );
+		final float sx = mDrawValues[Matrix.MSCALE_X];
+		final float ky = mDrawValues[Matrix.MSKEW_Y];
+		return (float) Math.sqrt( sx * sx + ky * ky ) * mIntrinsicWidth / mBitmap.getWidth();
+	}
+
+	/**
+	 * Returns the smallest level which still has at least one pixel per screen
+	 * pixel at the given scale
+	 */
+	protected int getLevel( float scale ) {
+		int level = 0;
+		while ( scale > 0 && scale <= 0.5f && level < MAX_LEVELS ) {
+			scale *= 2;
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Returns the bitmap of the given level, or the closest level available.
+	 * If the levels have not been built yet they're scheduled and the full
+	 * bitmap is returned
+	 */
+	protected Bitmap getLevelBitmap( int level ) {
+		if ( level <= 0 ) {
+			return mBitmap;
+		}
+
+		Bitmap[] levels = mLevels;
+		if ( null == levels ) {
+			buildPyramid();
+			return mBitmap;
+		}
+		return levels[Math.min( Math.max( level, 0 ), levels.length - 1 )];
+	}
+
+	protected void buildPyramid() {
+		if ( mBuildingPyramid ) {
+			return;
+		}
+		mBuildingPyramid = true;
+
+		final Bitmap bitmap = mBitmap;
+		final int generation = mPyramidGeneration;
+		final Executor executor = null != mPyramidExecutor ? mPyramidExecutor : ImageLoader.getDefaultExecutor();
+
+		mPyramidBuilds++;
+		executor.execute( new Runnable() {
+
+			@Override
+			public void run() {
+				final Bitmap[] levels = generation == mPyramidGeneration ? createLevels( bitmap ) : null;
+
+				sHandler.post( new Runnable() {
+
+					@Override
+					public void run() {
+						onPyramidBuildEnded();
+						if ( generation != mPyramidGeneration ) {
+							// released meanwhile
+							if ( null != levels ) {
+								recycleLevels( levels );
+							}
+							return;
+						}
+						if ( null != levels ) {
+							mLevels = levels;
+							mBuildingPyramid = false;
+							invalidateSelf();
+						}
+						// otherwise don't try again until released
+					}
+				} );
+			}
+		} );
+	}
+
+	private void onPyramidBuildEnded() {
+		if ( --mPyramidBuilds > 0 || mPyramidIdleActions.isEmpty() ) {
+			return;
+		}
+		Runnable[] actions = mPyramidIdleActions.toArray( new Runnable[mPyramidIdleActions.size()] );
+		mPyramidIdleActions.clear();
+		for ( Runnable action : actions ) {
+			action.run();
+		}
+	}
+
+	/**
+	 * Build the levels, each one half the size of the previous one. The first
+	 * level is the bitmap itself
+	 *
+	 * @return the levels or null if the bitmap cannot be read
+	 */
+	protected static Bitmap[] createLevels( Bitmap bitmap ) {
+		int count = 1;
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		while ( count <= MAX_LEVELS && width / 2 >= MIN_LEVEL_SIZE && height / 2 >= MIN_LEVEL_SIZE ) {
+			width /= 2;
+			height /= 2;
+			count++;
+		}
+
+		Bitmap[] levels = new Bitmap[count];
+		levels[0] = bitmap;
+		try {
+			for ( int i = 1; i < count; i++ ) {
+				Bitmap previous = levels[i - 1];
+				levels[i] = Bitmap.createScaledBitmap( previous, previous.getWidth() / 2, previous.getHeight() / 2, true );
+			}
+		} catch ( RuntimeException e ) {
+			// the bitmap has been recycled meanwhile
+			recycleLevels( levels );
+			return null;
+		} catch ( OutOfMemoryError e ) {
+			recycleLevels( levels );
+			return null;
+		}
+		return levels;
+	}
+
+	private static void recycleLevels( Bitmap[] levels ) {
+		for ( int i = 1; i < levels.length; i++ ) {
+			if ( null != levels[i] ) {
+				levels[i].recycle();
+			}
+		}
+	}
+
+	/**
+	 * Draw only the part of the bitmap inside {@link #mVisibleRect}. The
+	 * source rect is rounded out to whole bitmap pixels, and the destination
+	 * rect computed back from it so the bitmap is not stretched
+	 */
+	protected void drawVisibleRect( Canvas canvas, Bitmap bitmap ) {
+		final float sx = (float) bitmap.getWidth() / mIntrinsicWidth;
+		final float sy = (float) bitmap.getHeight() / mIntrinsicHeight;
+
+		mSrcRect.set( (int) Math.floor( mVisibleRect.left * sx ), (int) Math.floor( mVisibleRect.top * sy ),
+				(int) Math.ceil( mVisibleRect.right * sx ), (int) Math.ceil( mVisibleRect.bottom * sy ) );
+		mSrcRect.intersect( 0, 0, bitmap.getWidth(), bitmap.getHeight() );
+
+		mVisibleDstRect.set( mSrcRect.left / sx, mSrcRect.top / sy, mSrcRect.right / sx, mSrcRect.bottom / sy );
+		canvas.drawBitmap( bitmap, mSrcRect, mVisibleDstRect, mPaint );
+	}
+
+	/**
+	 * Compute the visible part of the drawable, in intrinsic coordinates, from
+	 * the canvas clip (the canvas is already transformed by the image matrix)
+	 *
+	 * @return false if nothing is visible
+	 */
+	protected boolean updateVisibleRect( Canvas canvas ) {
+		if ( !canvas.getClipBounds( mVisibleRect ) || !mVisibleRect.intersect( 0, 0, mIntrinsicWidth, mIntrinsicHeight ) ) {
+			mVisibleRect.setEmpty();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * If true (the default) only the part of the bitmap inside the canvas clip
+	 * is drawn
+	 */
+	public void setClipToViewport( boolean value ) {
+		mClipToViewport = value;
+		invalidateSelf();
+	}
+
+	public boolean isClipToViewport() {
+		return mClipToViewport;
+	}
+
+	/**
+	 * Returns the part of the image visible during the last draw, in
+	 * intrinsic coordinates. Only available if {@link #isClipToViewport()}
+	 *
+	 * @return false if nothing was visible
+	 */
+	public boolean getVisibleRect( Rect outRect ) {
+		outRect.set( mVisibleRect );
+		return !mVisibleRect.isEmpty();
+	}
+
+	/**
+	 * Returns true if the bitmap is drawn stretched to a different intrinsic
+	 * size
+	 */
+	public boolean isScaled() {
+		return mIntrinsicWidth != mBitmap.getWidth() || mIntrinsicHeight != mBitmap.getHeight();
 	}
 
 	@Override
 	public int getOpacity() {
-		return PixelFormat.TRANSLUCENT;
+		if ( mBitmap.hasAlpha() || mPaint.getAlpha() < 255 ) {
+			return PixelFormat.TRANSLUCENT;
+		}
+		return PixelFormat.OPAQUE;
 	}
 
 	@Override
@@ -55,22 +497,22 @@ public class FastBitmapDrawable extends Drawable implements IBitmapDrawable {
 
 	@Override
 	public int getIntrinsicWidth() {
-		return mBitmap.getWidth();
+		return mIntrinsicWidth;
 	}
 
 	@Override
 	public int getIntrinsicHeight() {
-		return mBitmap.getHeight();
+		return mIntrinsicHeight;
 	}
 
 	@Override
 	public int getMinimumWidth() {
-		return mBitmap.getWidth();
+		return mIntrinsicWidth;
 	}
 
 	@Override
 	public int getMinimumHeight() {
-		return mBitmap.getHeight();
+		return mIntrinsicHeight;
 	}
 	
 	public void setAntiAlias( boolean value ){
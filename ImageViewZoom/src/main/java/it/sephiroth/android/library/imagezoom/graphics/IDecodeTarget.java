@@ -0,0 +1,25 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import it.sephiroth.android.library.imagezoom.ImageViewTouchBase;
+import android.graphics.Point;
+
+/**
+ * Object which knows how many pixels of an image will be ever displayed (for
+ * instance the {@link ImageViewTouchBase}) and can be used to decode a
+ * smaller version of it
+ *
+ */
+public interface IDecodeTarget {
+
+	/**
+	 * Compute the size an image should be decoded to
+	 *
+	 * @param imageWidth
+	 *            - the source image width
+	 * @param imageHeight
+	 *            - the source image height
+	 * @param outSize
+	 *            - will contain the required size, never bigger than the source
+	 */
+	void getDecodeSize( int imageWidth, int imageHeight, Point outSize );
+}
@@ -0,0 +1,29 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import it.sephiroth.android.library.imagezoom.ImageViewTouchBase;
+import android.graphics.Matrix;
+
+/**
+ * Drawable which can load in advance the content about to become visible.<br />
+ * While a fling or an animation runs, the {@link ImageViewTouchBase} passes
+ * it the matrix predicted a few hundred ms ahead. The requests must have a
+ * lower priority than the ones for the visible content
+ *
+ */
+public interface IPrefetchDrawable {
+
+	/**
+	 * @param matrix
+	 *            - the predicted image view matrix
+	 * @param viewWidth
+	 *            - the view width
+	 * @param viewHeight
+	 *            - the view height
+	 */
+	void prefetch( Matrix matrix, int viewWidth, int viewHeight );
+
+	/**
+	 * The motion stopped, drop the prefetch requests not started yet
+	 */
+	void cancelPrefetch();
+}
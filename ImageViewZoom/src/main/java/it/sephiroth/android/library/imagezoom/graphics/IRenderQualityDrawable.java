@@ -0,0 +1,14 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import it.sephiroth.android.library.imagezoom.ImageViewTouchBase;
+
+/**
+ * Drawable which can trade quality for speed.<br />
+ * The {@link ImageViewTouchBase} lowers the quality while the user is
+ * interacting with it and restores it once idle
+ *
+ */
+public interface IRenderQualityDrawable {
+
+	void setRenderQuality( RenderQuality quality );
+}
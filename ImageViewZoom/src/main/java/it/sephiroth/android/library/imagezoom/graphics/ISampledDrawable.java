@@ -0,0 +1,19 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import it.sephiroth.android.library.imagezoom.ImageViewTouchBase;
+
+/**
+ * Drawable showing a downsampled version of a bigger image.<br />
+ * The {@link ImageViewTouchBase} computes the max zoom from the source size,
+ * so the zoom range doesn't depend on the size the image was decoded at
+ *
+ */
+public interface ISampledDrawable {
+
+	/**
+	 * Returns the width of the image the drawable was decoded from
+	 */
+	int getSourceWidth();
+
+	int getSourceHeight();
+}
@@ -0,0 +1,23 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import it.sephiroth.android.library.imagezoom.ImageViewTouchBase;
+import android.graphics.Matrix;
+
+/**
+ * Drawable which needs to know which part of it is currently visible.<br />
+ * The {@link ImageViewTouchBase} notifies it every time the display matrix
+ * changes
+ *
+ */
+public interface IViewportDrawable {
+
+	/**
+	 * @param matrix
+	 *            - the current image view matrix (base * support)
+	 * @param viewWidth
+	 *            - the view width
+	 * @param viewHeight
+	 *            - the view height
+	 */
+	void setViewport( Matrix matrix, int viewWidth, int viewHeight );
+}
@@ -0,0 +1,282 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+/**
+ * Several {@link BitmapRegionDecoder} instances opened on the same image.
+ * A single instance decodes one region at time, so regions decoded from
+ * different threads are spread over the instances: each call goes to the
+ * least busy one, and a new instance is opened, up to the max size, when
+ * they are all busy.<br />
+ * The queue depth and the decode time of each instance are recorded.<br />
+ * Requires API level 10.
+ *
+ */
+public class RegionDecoderPool {
+
+	/**
+	 * Opens a new decoder on the pool image
+	 */
+	public interface Opener {
+
+		BitmapRegionDecoder open() throws IOException;
+	}
+
+	/**
+	 * Open a pool on a file, sized with {@link #getDefaultSize(long)}
+	 */
+	public static RegionDecoderPool open( final String pathName ) throws IOException {
+		return open( pathName, getDefaultSize( new File( pathName ).length() ) );
+	}
+
+	public static RegionDecoderPool open( final String pathName, int maxSize ) throws IOException {
+		return new RegionDecoderPool( new Opener() {
+
+			@Override
+			public BitmapRegionDecoder open() throws IOException {
+				return BitmapRegionDecoder.newInstance( pathName, false );
+			}
+		}, maxSize );
+	}
+
+	/**
+	 * Returns the number of instances worth opening: one per core, as long as
+	 * they fit in 1/16 of the heap. Every instance is assumed to cost as
+	 * much as the encoded image
+	 *
+	 * @param sourceLength
+	 *            - the size in bytes of the encoded image, or 0 if unknown
+	 */
+	public static int getDefaultSize( long sourceLength ) {
+		int size = Runtime.getRuntime().availableProcessors();
+		if ( sourceLength > 0 ) {
+			size = (int) Math.min( size, Runtime.getRuntime().maxMemory() / 16 / sourceLength );
+		}
+		return Math.max( 1, size );
+	}
+
+	static final class Instance {
+
+		final BitmapRegionDecoder decoder;
+		int queueDepth;
+		int maxQueueDepth;
+		long decodeCount;
+		long decodeTime;
+		long lastDecodeTime;
+
+		Instance( BitmapRegionDecoder decoder ) {
+			this.decoder = decoder;
+		}
+	}
+
+	protected Opener mOpener;
+	protected final int mMaxSize;
+	protected final int mWidth;
+	protected final int mHeight;
+	protected final ArrayList<Instance> mInstances = new ArrayList<Instance>();
+	protected int mOpening;
+	protected boolean mRecycled;
+
+	/**
+	 * Pool with a single instance, for images which cannot be opened again
+	 */
+	public RegionDecoderPool( BitmapRegionDecoder decoder ) {
+		mOpener = null;
+		mMaxSize = 1;
+		mWidth = decoder.getWidth();
+		mHeight = decoder.getHeight();
+		mInstances.add( new Instance( decoder ) );
+	}
+
+	/**
+	 * @param opener
+	 *            - used to open the first instance now and the other ones
+	 *            when needed
+	 * @param maxSize
+	 *            - max number of instances
+	 */
+	public RegionDecoderPool( Opener opener, int maxSize ) throws IOException {
+		BitmapRegionDecoder decoder = opener.open();
+		if ( null == decoder ) {
+			throw new IOException( "Cannot open the image" );
+		}
+		mOpener = opener;
+		mMaxSize = Math.max( 1, maxSize );
+		mWidth = decoder.getWidth();
+		mHeight = decoder.getHeight();
+		mInstances.add( new Instance( decoder ) );
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Returns the max number of instances, that is the number of regions
+	 * which can be decoded at the same time
+	 */
+	public int getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized int getInstanceCount() {
+		return mInstances.size();
+	}
+
+	/**
+	 * Returns the number of regions being decoded or waiting for the given
+	 * instance
+	 */
+	public synchronized int getQueueDepth( int instance ) {
+		return mInstances.get( instance ).queueDepth;
+	}
+
+	public synchronized int getMaxQueueDepth( int instance ) {
+		return mInstances.get( instance ).maxQueueDepth;
+	}
+
+	public synchronized long getDecodeCount( int instance ) {
+		return mInstances.get( instance ).decodeCount;
+	}
+
+	/**
+	 * Returns the average time, in ms, the instance took to decode a region,
+	 * waiting time included
+	 */
+	public synchronized float getAverageDecodeTime( int instance ) {
+		Instance item = mInstances.get( instance );
+		return item.decodeCount > 0 ? item.decodeTime / 1000000f / item.decodeCount : 0;
+	}
+
+	public synchronized float getLastDecodeTime( int instance ) {
+		return mInstances.get( instance ).lastDecodeTime / 1000000f;
+	}
+
+	/**
+	 * Decode a region on the least busy instance. Can be called from any
+	 * thread
+	 *
+	 * @return the decoded bitmap, or null if the pool has been recycled or
+	 *         the region cannot be decoded
+	 */
+	public Bitmap decodeRegion( Rect rect, BitmapFactory.Options options ) {
+		final Instance instance = acquire();
+		if ( null == instance ) {
+			return null;
+		}
+
+		final long start = System.nanoTime();
+		try {
+			synchronized ( instance ) {
+				return instance.decoder.decodeRegion( rect, options );
+			}
+		} catch ( IllegalStateException e ) {
+			// recycled meanwhile
+			return null;
+		} finally {
+			release( instance, System.nanoTime() - start );
+		}
+	}
+
+	/**
+	 * Recycle all the instances. The pending decodes return null
+	 */
+	public synchronized void recycle() {
+		mRecycled = true;
+		for ( Instance instance : mInstances ) {
+			instance.decoder.recycle();
+		}
+	}
+
+	public synchronized boolean isRecycled() {
+		return mRecycled;
+	}
+
+	protected Instance acquire() {
+		Opener opener;
+		synchronized ( this ) {
+			if ( mRecycled ) {
+				return null;
+			}
+			Instance best = getLeastBusy();
+			if ( best.queueDepth == 0 || null == mOpener || mInstances.size() + mOpening >= mMaxSize ) {
+				enqueue( best );
+				return best;
+			}
+			opener = mOpener;
+			mOpening++;
+		}
+
+		// opening can be slow, don't block the other threads meanwhile
+		BitmapRegionDecoder decoder = null;
+		try {
+			decoder = opener.open();
+		} catch ( IOException e ) {
+			decoder = null;
+		}
+
+		synchronized ( this ) {
+			mOpening--;
+			if ( mRecycled ) {
+				if ( null != decoder ) decoder.recycle();
+				return null;
+			}
+
+			Instance instance;
+			if ( null != decoder ) {
+				instance = new Instance( decoder );
+				mInstances.add( instance );
+			} else {
+				// don't try again
+				mOpener = null;
+				instance = getLeastBusy();
+			}
+			enqueue( instance );
+			return instance;
+		}
+	}
+
+	protected synchronized void release( Instance instance, long time ) {
+		instance.queueDepth--;
+		instance.decodeCount++;
+		instance.decodeTime += time;
+		instance.lastDecodeTime = time;
+	}
+
+	private void enqueue( Instance instance ) {
+		instance.queueDepth++;
+		instance.maxQueueDepth = Math.max( instance.maxQueueDepth, instance.queueDepth );
+	}
+
+	private Instance getLeastBusy() {
+		Instance best = mInstances.get( 0 );
+		for ( int i = 1; i < mInstances.size(); i++ ) {
+			if ( mInstances.get( i ).queueDepth < best.queueDepth ) {
+				best = mInstances.get( i );
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder( "RegionDecoderPool[" );
+		for ( int i = 0; i < mInstances.size(); i++ ) {
+			if ( i > 0 ) builder.append( ", " );
+			builder.append( "#" ).append( i ).append( " queue=" ).append( getQueueDepth( i ) ).append( " avg=" ).append( getAverageDecodeTime( i ) )
+					.append( "ms" );
+		}
+		return builder.append( "]" ).toString();
+	}
+}
@@ -0,0 +1,31 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+/**
+ * How an {@link IRenderQualityDrawable} should draw its bitmaps
+ *
+ */
+public final class RenderQuality {
+
+	/** bilinear filtering and dithering, the full resolution level */
+	public static final RenderQuality HIGH = new RenderQuality( true, true, 0 );
+
+	/** no filtering nor dithering, one pyramid level lower than needed */
+	public static final RenderQuality FAST = new RenderQuality( false, false, 1 );
+
+	public final boolean filter;
+	public final boolean dither;
+
+	/** number of pyramid levels to go below the one matching the scale */
+	public final int levelBias;
+
+	public RenderQuality( boolean filter, boolean dither, int levelBias ) {
+		this.filter = filter;
+		this.dither = dither;
+		this.levelBias = levelBias;
+	}
+
+	@Override
+	public String toString() {
+		return "RenderQuality[filter=" + filter + ", dither=" + dither + ", levelBias=" + levelBias + "]";
+	}
+}
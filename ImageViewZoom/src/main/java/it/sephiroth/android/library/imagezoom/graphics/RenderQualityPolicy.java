@@ -0,0 +1,35 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+/**
+ * Chooses the {@link RenderQuality} of the displayed image depending on
+ * whether the user is interacting with the view (scrolling, scaling or an
+ * animation is running) or the view is idle. Subclasses can take finer
+ * decisions.
+ *
+ */
+public class RenderQualityPolicy {
+
+	/** fast while interacting, high quality at rest */
+	public static final RenderQualityPolicy DEFAULT = new RenderQualityPolicy( RenderQuality.FAST, RenderQuality.HIGH );
+
+	/** always high quality */
+	public static final RenderQualityPolicy ALWAYS_HIGH = new RenderQualityPolicy( RenderQuality.HIGH, RenderQuality.HIGH );
+
+	protected final RenderQuality mInteracting;
+	protected final RenderQuality mIdle;
+
+	public RenderQualityPolicy( RenderQuality interacting, RenderQuality idle ) {
+		mInteracting = interacting;
+		mIdle = idle;
+	}
+
+	/**
+	 * @param interacting
+	 *            - true while a gesture or an animation is in progress
+	 * @param scale
+	 *            - the current zoom
+	 */
+	public RenderQuality getRenderQuality( boolean interacting, float scale ) {
+		return interacting ? mInteracting : mIdle;
+	}
+}
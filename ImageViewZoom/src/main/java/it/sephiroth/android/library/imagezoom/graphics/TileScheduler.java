@@ -0,0 +1,431 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Decodes the tiles of a large image in order of importance for the current
+ * viewport: tiles at the current resolution first, then the ones closest to
+ * the viewport centre. Pending requests for tiles which left the viewport,
+ * or for another resolution, are dropped as soon as the viewport changes,
+ * so a pan never waits for tiles which are no more on screen.<br />
+ * Decoded tiles are kept in a LRU cache bounded in bytes. The tiles visible
+ * in the current viewport are never evicted.<br />
+ * Must be used from the UI thread, except {@link TileDecoder} which is
+ * invoked on the executor threads.
+ *
+ */
+public class TileScheduler {
+
+	public interface TileDecoder {
+
+		/**
+		 * Decode the given region of the image. Invoked on a worker thread
+		 *
+		 * @return the decoded bitmap, or null on failure
+		 */
+		Bitmap decodeTile( Rect rect, int sampleSize );
+	}
+
+	public interface Callback {
+
+		/**
+		 * A tile requested with {@link TileScheduler#request(int, int, int, boolean)}
+		 * is ready. Invoked on the UI thread
+		 */
+		void onTileReady( Tile tile );
+	}
+
+	public static final class Tile {
+
+		final long key;
+		final int sampleSize;
+		final int col;
+		final int row;
+		final Rect rect = new Rect();
+		Bitmap bitmap;
+		boolean prefetch;
+		float priority;
+		volatile boolean cancelled;
+
+		Tile( int sampleSize, int col, int row ) {
+			this.key = getTileKey( sampleSize, col, row );
+			this.sampleSize = sampleSize;
+			this.col = col;
+			this.row = row;
+		}
+
+		public int getSampleSize() {
+			return sampleSize;
+		}
+
+		public Rect getRect() {
+			return rect;
+		}
+
+		/**
+		 * Returns the decoded tile, or null if not ready
+		 */
+		public Bitmap getBitmap() {
+			return bitmap;
+		}
+
+		public boolean isPrefetch() {
+			return prefetch;
+		}
+
+		long getByteCount() {
+			return null != bitmap ? (long) bitmap.getRowBytes() * bitmap.getHeight() : 0;
+		}
+
+		void recycle() {
+			cancelled = true;
+			if ( null != bitmap ) {
+				bitmap.recycle();
+				bitmap = null;
+			}
+		}
+	}
+
+	/** priority penalty, in tiles, of each power of 2 away from the current sample size */
+	protected static final float RESOLUTION_WEIGHT = 4f;
+
+	/** priority penalty of the prefetch requests, which always come after the visible ones */
+	protected static final float PREFETCH_WEIGHT = 1000f;
+
+	protected final int mWidth;
+	protected final int mHeight;
+	protected final int mTileSize;
+	protected final Executor mExecutor;
+	protected final TileDecoder mDecoder;
+	protected final Callback mCallback;
+	protected final Handler mHandler = new Handler( Looper.getMainLooper() );
+
+	/** requests not started yet, guarded by itself */
+	protected final ArrayList<Tile> mPending = new ArrayList<Tile>();
+	/** requests being decoded, by key, guarded by {@link #mPending} */
+	protected final LinkedHashMap<Long, Tile> mDecoding = new LinkedHashMap<Long, Tile>();
+	/** decoded tiles, least recently used first */
+	protected final LinkedHashMap<Long, Tile> mCache = new LinkedHashMap<Long, Tile>( 32, 0.75f, true );
+	protected final long mMaxCacheSize;
+	protected long mCacheSize;
+
+	protected final Rect mViewport = new Rect();
+	protected int mSampleSize = 1;
+	protected boolean mDisposed;
+
+	private int mCancelledCount;
+
+	/**
+	 * @param width
+	 *            - the image width
+	 * @param height
+	 *            - the image height
+	 * @param tileSize
+	 *            - the size of the decoded tiles, in pixels
+	 * @param maxCacheSize
+	 *            - max size in bytes of the decoded tiles kept in memory
+	 */
+	public TileScheduler( int width, int height, int tileSize, long maxCacheSize, Executor executor, TileDecoder decoder, Callback callback ) {
+		mWidth = width;
+		mHeight = height;
+		mTileSize = tileSize;
+		mMaxCacheSize = maxCacheSize;
+		mExecutor = executor;
+		mDecoder = decoder;
+		mCallback = callback;
+	}
+
+	public static long getTileKey( int sampleSize, int col, int row ) {
+		return ( (long) sampleSize << 48 ) | ( (long) row << 24 ) | col;
+	}
+
+	public int getTileSize() {
+		return mTileSize;
+	}
+
+	/**
+	 * Set the visible part of the image, in image coordinates, and the sample
+	 * size it's displayed at. The pending requests which are no more needed
+	 * are cancelled and the other ones sorted again.
+	 */
+	public void setViewport( Rect viewport, int sampleSize ) {
+		mViewport.set( viewport );
+		mSampleSize = sampleSize;
+
+		synchronized ( mPending ) {
+			Iterator<Tile> iterator = mPending.iterator();
+			while ( iterator.hasNext() ) {
+				Tile tile = iterator.next();
+				if ( !tile.prefetch && !isVisible( tile ) ) {
+					tile.cancelled = true;
+					iterator.remove();
+					mCancelledCount++;
+				} else {
+					tile.priority = computePriority( tile );
+				}
+			}
+		}
+	}
+
+	public Rect getViewport() {
+		return mViewport;
+	}
+
+	public int getSampleSize() {
+		return mSampleSize;
+	}
+
+	/**
+	 * Returns true if the tile is at the current sample size and intersects
+	 * the current viewport
+	 */
+	public boolean isVisible( Tile tile ) {
+		return tile.sampleSize == mSampleSize && Rect.intersects( tile.rect, mViewport );
+	}
+
+	/**
+	 * Returns the tile at the given position, decoding it if needed. If
+	 * already requested the same instance is returned
+	 *
+	 * @param prefetch
+	 *            - true if the tile is not visible yet but will likely be
+	 *            soon. Prefetch requests are decoded after all the visible
+	 *            ones and are not dropped when the viewport changes, see
+	 *            {@link #cancelPrefetch()}
+	 * @return the tile, its bitmap is null until ready
+	 */
+	public Tile request( int sampleSize, int col, int row, boolean prefetch ) {
+		final long key = getTileKey( sampleSize, col, row );
+
+		Tile tile = mCache.get( key );
+		if ( null != tile ) {
+			return tile;
+		}
+
+		synchronized ( mPending ) {
+			tile = mDecoding.get( key );
+			if ( null != tile ) {
+				tile.prefetch &= prefetch;
+				return tile;
+			}
+
+			for ( int i = 0; i < mPending.size(); i++ ) {
+				tile = mPending.get( i );
+				if ( tile.key == key ) {
+					if ( tile.prefetch && !prefetch ) {
+						tile.prefetch = false;
+						tile.priority = computePriority( tile );
+					}
+					return tile;
+				}
+			}
+
+			tile = new Tile( sampleSize, col, row );
+			final int size = mTileSize * sampleSize;
+			tile.rect.set( col * size, row * size, Math.min( mWidth, ( col + 1 ) * size ), Math.min( mHeight, ( row + 1 ) * size ) );
+			tile.prefetch = prefetch;
+			tile.priority = computePriority( tile );
+			mPending.add( tile );
+		}
+
+		// every task decodes the most important pending tile, not this one
+		mExecutor.execute( mDecodeTask );
+		return tile;
+	}
+
+	/**
+	 * Drop the prefetch requests which have not been started yet
+	 */
+	public void cancelPrefetch() {
+		synchronized ( mPending ) {
+			Iterator<Tile> iterator = mPending.iterator();
+			while ( iterator.hasNext() ) {
+				Tile tile = iterator.next();
+				if ( tile.prefetch ) {
+					tile.cancelled = true;
+					iterator.remove();
+					mCancelledCount++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add to the list the decoded tiles with a different sample size which
+	 * intersect the viewport, coarsest first. They can be drawn while the
+	 * tiles at the current resolution are not ready
+	 */
+	public void getFallbackTiles( List<Tile> outTiles ) {
+		for ( Tile tile : mCache.values() ) {
+			if ( tile.sampleSize != mSampleSize && null != tile.bitmap && Rect.intersects( tile.rect, mViewport ) ) {
+				int index = 0;
+				while ( index < outTiles.size() && outTiles.get( index ).sampleSize >= tile.sampleSize ) {
+					index++;
+				}
+				outTiles.add( index, tile );
+			}
+		}
+	}
+
+	public int getPendingCount() {
+		synchronized ( mPending ) {
+			return mPending.size();
+		}
+	}
+
+	/**
+	 * Returns the number of requests dropped before being decoded
+	 */
+	public int getCancelledCount() {
+		synchronized ( mPending ) {
+			return mCancelledCount;
+		}
+	}
+
+	public int getCachedCount() {
+		return mCache.size();
+	}
+
+	public long getCacheSize() {
+		return mCacheSize;
+	}
+
+	public long getMaxCacheSize() {
+		return mMaxCacheSize;
+	}
+
+	/**
+	 * Cancel all the requests and recycle the cached tiles
+	 */
+	public void dispose() {
+		mDisposed = true;
+		synchronized ( mPending ) {
+			for ( Tile tile : mPending ) {
+				tile.cancelled = true;
+			}
+			mPending.clear();
+			for ( Tile tile : mDecoding.values() ) {
+				tile.cancelled = true;
+			}
+			mDecoding.clear();
+		}
+		for ( Tile tile : mCache.values() ) {
+			tile.recycle();
+		}
+		mCache.clear();
+		mCacheSize = 0;
+	}
+
+	/**
+	 * Lower is more important: the distance in tiles between the tile and the
+	 * viewport centres, plus a penalty for each power of 2 between the tile
+	 * and the current sample size
+	 */
+	protected float computePriority( Tile tile ) {
+		final float size = (float) mTileSize * mSampleSize;
+		final float dx = ( tile.rect.exactCenterX() - mViewport.exactCenterX() ) / size;
+		final float dy = ( tile.rect.exactCenterY() - mViewport.exactCenterY() ) / size;
+		float priority = (float) Math.sqrt( dx * dx + dy * dy );
+
+		final int levels = Math.abs( Integer.numberOfTrailingZeros( tile.sampleSize ) - Integer.numberOfTrailingZeros( mSampleSize ) );
+		priority += levels * RESOLUTION_WEIGHT;
+
+		if ( tile.prefetch ) {
+			priority += PREFETCH_WEIGHT;
+		}
+		return priority;
+	}
+
+	/**
+	 * Move the most important pending request to the decoding ones, or
+	 * return null. Invoked on the worker threads
+	 */
+	protected Tile poll() {
+		synchronized ( mPending ) {
+			int best = -1;
+			for ( int i = 0; i < mPending.size(); i++ ) {
+				if ( best < 0 || mPending.get( i ).priority < mPending.get( best ).priority ) {
+					best = i;
+				}
+			}
+			if ( best < 0 ) {
+				return null;
+			}
+			Tile tile = mPending.remove( best );
+			mDecoding.put( tile.key, tile );
+			return tile;
+		}
+	}
+
+	protected void onTileDecoded( Tile tile, Bitmap bitmap ) {
+		synchronized ( mPending ) {
+			mDecoding.remove( tile.key );
+		}
+		if ( tile.cancelled || mDisposed || null == bitmap || mCache.containsKey( tile.key ) ) {
+			if ( null != bitmap ) bitmap.recycle();
+			return;
+		}
+
+		tile.bitmap = bitmap;
+		mCache.put( tile.key, tile );
+		mCacheSize += tile.getByteCount();
+		trimCache();
+		mCallback.onTileReady( tile );
+	}
+
+	/**
+	 * Evict the least recently used tiles, except the visible ones, until the
+	 * cache fits its max size
+	 */
+	protected void trimCache() {
+		Iterator<Map.Entry<Long, Tile>> iterator = mCache.entrySet().iterator();
+		while ( mCacheSize > mMaxCacheSize && iterator.hasNext() ) {
+			Tile tile = iterator.next().getValue();
+			if ( isVisible( tile ) ) {
+				continue;
+			}
+			iterator.remove();
+			mCacheSize -= tile.getByteCount();
+			tile.recycle();
+		}
+	}
+
+	protected final Runnable mDecodeTask = new Runnable() {
+
+		@Override
+		public void run() {
+			final Tile tile = poll();
+			if ( null == tile ) {
+				return;
+			}
+
+			Bitmap bitmap = null;
+			if ( !tile.cancelled ) {
+				try {
+					bitmap = mDecoder.decodeTile( tile.rect, tile.sampleSize );
+				} catch ( OutOfMemoryError e ) {
+					bitmap = null;
+				}
+			}
+
+			final Bitmap result = bitmap;
+			mHandler.post( new Runnable() {
+
+				@Override
+				public void run() {
+					onTileDecoded( tile, result );
+				}
+			} );
+		}
+	};
+}
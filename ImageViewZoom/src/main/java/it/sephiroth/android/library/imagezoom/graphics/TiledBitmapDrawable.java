@@ -0,0 +1,520 @@
+package it.sephiroth.android.library.imagezoom.graphics;
+
+import it.sephiroth.android.library.imagezoom.utils.IDisposable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Drawable for very large images. Only a low resolution preview is kept for
+ * the whole image, while the tiles intersecting the current viewport are
+ * decoded on demand using a {@link RegionDecoderPool}.<br />
+ * The tiles sample size is chosen from the current display scale, so memory
+ * usage depends on the view size and not on the image size. Tiles are
+ * decoded by a {@link TileScheduler}, nearest to the viewport centre first,
+ * and the recently used ones are cached. When the pool can open several
+ * decoders on the image, as many tiles are decoded in parallel. The tiles of
+ * the predicted viewport are requested as prefetch while the image moves.<br />
+ * The preview and the tiles are decoded on the given executor, by default
+ * one shared by all the drawables. The constructors which open the image
+ * read it, so they should not be called on the UI thread (see
+ * {@link it.sephiroth.android.library.imagezoom.ImageViewTouchBase#setImageTiled(java.io.File)}).<br />
+ * Requires API level 10.
+ *
+ */
+public class TiledBitmapDrawable extends Drawable implements IBitmapDrawable, IViewportDrawable, IPrefetchDrawable, IRenderQualityDrawable,
+		IDisposable {
+
+	public static final int DEFAULT_TILE_SIZE = 512;
+
+	/** max size of the preview bitmap longest side */
+	protected static final int PREVIEW_MAX_SIZE = 1024;
+
+	/** default max size of the decoded tiles cache, capped to 1/8 of the heap */
+	public static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+
+	/** max number of tiles requested by each {@link #prefetch(Matrix, int, int)} */
+	protected static final int MAX_PREFETCH_TILES = 16;
+
+	private static final Rect EMPTY_RECT = new Rect();
+
+	private static final Handler sHandler = new Handler( Looper.getMainLooper() );
+
+	private static Executor sDefaultExecutor;
+
+	/**
+	 * Returns the executor shared by the drawables created without one: one
+	 * background thread per core, as many as the decoders a pool can open
+	 */
+	public static synchronized Executor getDefaultExecutor() {
+		if ( null == sDefaultExecutor ) {
+			final int size = Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor( size, size, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+
+						int mCount = 0;
+
+						@Override
+						public Thread newThread( final Runnable r ) {
+							Thread thread = new Thread( new Runnable() {
+
+								@Override
+								public void run() {
+									Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+									r.run();
+								}
+							}, "TiledBitmapDrawable #" + ( ++mCount ) );
+							thread.setDaemon( true );
+							return thread;
+						}
+					} );
+			executor.allowCoreThreadTimeOut( true );
+			sDefaultExecutor = executor;
+		}
+		return sDefaultExecutor;
+	}
+
+	protected final RegionDecoderPool mDecoderPool;
+	protected final int mWidth;
+	protected final int mHeight;
+	protected final int mTileSize;
+
+	protected volatile Bitmap mPreview;
+	protected int mPreviewSampleSize;
+	protected Paint mPaint;
+
+	protected final TileScheduler mScheduler;
+	protected final ArrayList<TileScheduler.Tile> mVisibleTiles = new ArrayList<TileScheduler.Tile>();
+	protected final ArrayList<TileScheduler.Tile> mDrawList = new ArrayList<TileScheduler.Tile>();
+	protected final Rect mViewport = new Rect();
+	protected final Rect mPrefetchViewport = new Rect();
+	private float[] mPrefetchDistances;
+	protected final RectF mViewportF = new RectF();
+	protected final RectF mImageRect = new RectF();
+	protected final Matrix mInverse = new Matrix();
+	protected final float[] mMatrixValues = new float[9];
+	protected int mSampleSize = 1;
+
+	protected final Executor mExecutor;
+	protected volatile boolean mDisposed;
+
+	/**
+	 * The file is opened by a {@link RegionDecoderPool} sized with
+	 * {@link RegionDecoderPool#getDefaultSize(long)}
+	 */
+	public TiledBitmapDrawable( String pathName ) throws IOException {
+		this( pathName, getDefaultExecutor() );
+	}
+
+	/**
+	 * @param executor
+	 *            - decodes the preview and the tiles
+	 * @see #TiledBitmapDrawable(String)
+	 */
+	public TiledBitmapDrawable( String pathName, Executor executor ) throws IOException {
+		this( RegionDecoderPool.open( pathName ), DEFAULT_TILE_SIZE, getDefaultCacheSize(), executor );
+	}
+
+	public TiledBitmapDrawable( InputStream is ) throws IOException {
+		this( BitmapRegionDecoder.newInstance( is, false ), DEFAULT_TILE_SIZE );
+	}
+
+	public TiledBitmapDrawable( BitmapRegionDecoder decoder, int tileSize ) {
+		this( decoder, tileSize, getDefaultCacheSize() );
+	}
+
+	public TiledBitmapDrawable( BitmapRegionDecoder decoder, int tileSize, long cacheSize ) {
+		this( new RegionDecoderPool( decoder ), tileSize, cacheSize );
+	}
+
+	/**
+	 * @param cacheSize
+	 *            - max size in bytes of the decoded tiles kept in memory. The
+	 *            visible tiles are always kept
+	 */
+	public TiledBitmapDrawable( RegionDecoderPool decoderPool, int tileSize, long cacheSize ) {
+		this( decoderPool, tileSize, cacheSize, getDefaultExecutor() );
+	}
+
+	/**
+	 * The preview is decoded in background, only the tiles are drawn until
+	 * it's ready
+	 *
+	 * @param executor
+	 *            - decodes the preview and the tiles. It's not shut down by
+	 *            {@link #dispose()}
+	 */
+	public TiledBitmapDrawable( RegionDecoderPool decoderPool, int tileSize, long cacheSize, Executor executor ) {
+		mDecoderPool = decoderPool;
+		mWidth = decoderPool.getWidth();
+		mHeight = decoderPool.getHeight();
+		mTileSize = tileSize;
+		mImageRect.set( 0, 0, mWidth, mHeight );
+
+		mPaint = new Paint();
+		mPaint.setDither( true );
+		mPaint.setFilterBitmap( true );
+
+		mExecutor = executor;
+		mScheduler = new TileScheduler( mWidth, mHeight, tileSize, cacheSize, mExecutor, mTileDecoder, mTileCallback );
+
+		mPreviewSampleSize = 1;
+		while ( Math.max( mWidth, mHeight ) / mPreviewSampleSize > PREVIEW_MAX_SIZE ) {
+			mPreviewSampleSize *= 2;
+		}
+		mExecutor.execute( mPreviewTask );
+	}
+
+	protected static long getDefaultCacheSize() {
+		return Math.min( DEFAULT_CACHE_SIZE, Runtime.getRuntime().maxMemory() / 8 );
+	}
+
+	/**
+	 * Compute the sample size to be used for the given display scale. The
+	 * returned value is the largest power of 2 which doesn't drop pixels
+	 * visible on screen
+	 *
+	 * @param scale
+	 *            - the effective display scale
+	 * @return
+	 */
+	public static int getSampleSizeForScale( float scale ) {
+		int sampleSize = 1;
+		if ( scale <= 0 ) {
+			return sampleSize;
+		}
+		while ( sampleSize * 2 <= 1f / scale ) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	@Override
+	public void setViewport( Matrix matrix, int viewWidth, int viewHeight ) {
+		if ( mDisposed || viewWidth <= 0 || viewHeight <= 0 ) {
+			return;
+		}
+
+		final int sampleSize = computeViewport( matrix, viewWidth, viewHeight, mViewport );
+		if ( sampleSize > 0 ) {
+			mSampleSize = sampleSize;
+			updateTiles();
+		}
+	}
+
+	/**
+	 * Request, with a low priority, the tiles visible with the given matrix.
+	 * They stay queued after the visible ones until {@link #cancelPrefetch()}
+	 */
+	@Override
+	public void prefetch( Matrix matrix, int viewWidth, int viewHeight ) {
+		if ( mDisposed || viewWidth <= 0 || viewHeight <= 0 ) {
+			return;
+		}
+
+		final int sampleSize = computeViewport( matrix, viewWidth, viewHeight, mPrefetchViewport );
+		if ( sampleSize <= 0 || sampleSize >= mPreviewSampleSize || mPrefetchViewport.isEmpty() ) {
+			return;
+		}
+
+		final int size = mTileSize * sampleSize;
+		final int firstCol = mPrefetchViewport.left / size;
+		final int lastCol = ( mPrefetchViewport.right - 1 ) / size;
+		final int firstRow = mPrefetchViewport.top / size;
+		final int lastRow = ( mPrefetchViewport.bottom - 1 ) / size;
+
+		final int count = ( lastCol - firstCol + 1 ) * ( lastRow - firstRow + 1 );
+		if ( count <= MAX_PREFETCH_TILES ) {
+			for ( int row = firstRow; row <= lastRow; row++ ) {
+				for ( int col = firstCol; col <= lastCol; col++ ) {
+					mScheduler.request( sampleSize, col, row, true );
+				}
+			}
+			return;
+		}
+
+		// too many tiles: keep the ones nearest to the predicted centre
+		if ( null == mPrefetchDistances || mPrefetchDistances.length < count ) {
+			mPrefetchDistances = new float[count];
+		}
+		final float centerX = mPrefetchViewport.exactCenterX() / size - 0.5f;
+		final float centerY = mPrefetchViewport.exactCenterY() / size - 0.5f;
+		int index = 0;
+		for ( int row = firstRow; row <= lastRow; row++ ) {
+			for ( int col = firstCol; col <= lastCol; col++, index++ ) {
+				final float dx = col - centerX;
+				final float dy = row - centerY;
+				mPrefetchDistances[index] = dx * dx + dy * dy;
+			}
+		}
+
+		final int cols = lastCol - firstCol + 1;
+		for ( int n = 0; n < MAX_PREFETCH_TILES; n++ ) {
+			int best = -1;
+			for ( int i = 0; i < count; i++ ) {
+				if ( mPrefetchDistances[i] >= 0 && ( best < 0 || mPrefetchDistances[i] < mPrefetchDistances[best] ) ) {
+					best = i;
+				}
+			}
+			mPrefetchDistances[best] = -1;
+			mScheduler.request( sampleSize, firstCol + best % cols, firstRow + best / cols, true );
+		}
+	}
+
+	@Override
+	public void cancelPrefetch() {
+		if ( !mDisposed ) {
+			mScheduler.cancelPrefetch();
+		}
+	}
+
+	/**
+	 * Compute the part of the image visible with the given matrix
+	 *
+	 * @return the sample size for the matrix scale, or 0 if the matrix cannot
+	 *         be inverted
+	 */
+	protected int computeViewport( Matrix matrix, int viewWidth, int viewHeight, Rect outViewport ) {
+		if ( !matrix.invert( mInverse ) ) {
+			return 0;
+		}
+
+		mViewportF.set( 0, 0, viewWidth, viewHeight );
+		mInverse.mapRect( mViewportF );
+		if ( !mViewportF.intersect( mImageRect ) ) {
+			outViewport.setEmpty();
+		} else {
+			mViewportF.roundOut( outViewport );
+		}
+
+		matrix.getValues( mMatrixValues );
+		return getSampleSizeForScale( Math.abs( mMatrixValues[Matrix.MSCALE_X] ) );
+	}
+
+	/**
+	 * Returns the portion of the image, in image coordinates, visible the last
+	 * time {@link #setViewport(Matrix, int, int)} was called
+	 *
+	 * @return
+	 */
+	public Rect getViewport() {
+		return mViewport;
+	}
+
+	public int getSampleSize() {
+		return mSampleSize;
+	}
+
+	public TileScheduler getScheduler() {
+		return mScheduler;
+	}
+
+	/**
+	 * Returns the decoders of the image, with their queue depth and decode
+	 * time
+	 */
+	public RegionDecoderPool getDecoderPool() {
+		return mDecoderPool;
+	}
+
+	/**
+	 * Request the tiles intersecting the viewport. The pending requests for
+	 * the tiles no more visible are dropped
+	 */
+	protected void updateTiles() {
+		final boolean needTiles = mSampleSize < mPreviewSampleSize && !mViewport.isEmpty();
+		final int size = mTileSize * mSampleSize;
+
+		mVisibleTiles.clear();
+		if ( !needTiles ) {
+			mScheduler.setViewport( EMPTY_RECT, mSampleSize );
+			return;
+		}
+		mScheduler.setViewport( mViewport, mSampleSize );
+
+		final int firstCol = mViewport.left / size;
+		final int lastCol = ( mViewport.right - 1 ) / size;
+		final int firstRow = mViewport.top / size;
+		final int lastRow = ( mViewport.bottom - 1 ) / size;
+
+		for ( int row = firstRow; row <= lastRow; row++ ) {
+			for ( int col = firstCol; col <= lastCol; col++ ) {
+				mVisibleTiles.add( mScheduler.request( mSampleSize, col, row, false ) );
+			}
+		}
+	}
+
+	protected static long getTileKey( int sampleSize, int col, int row ) {
+		return TileScheduler.getTileKey( sampleSize, col, row );
+	}
+
+	@Override
+	public void draw( Canvas canvas ) {
+		if ( null != mPreview ) {
+			canvas.drawBitmap( mPreview, null, mImageRect, mPaint );
+		}
+
+		if ( mVisibleTiles.isEmpty() ) {
+			return;
+		}
+
+		boolean complete = true;
+		for ( int i = 0; i < mVisibleTiles.size(); i++ ) {
+			if ( null == mVisibleTiles.get( i ).bitmap ) {
+				complete = false;
+				break;
+			}
+		}
+
+		// other resolutions cover the missing tiles until they are ready
+		mDrawList.clear();
+		if ( !complete ) {
+			mScheduler.getFallbackTiles( mDrawList );
+		}
+		mDrawList.addAll( mVisibleTiles );
+
+		for ( int i = 0; i < mDrawList.size(); i++ ) {
+			TileScheduler.Tile tile = mDrawList.get( i );
+			if ( null != tile.bitmap ) {
+				canvas.drawBitmap( tile.bitmap, null, tile.rect, mPaint );
+			}
+		}
+		mDrawList.clear();
+	}
+
+	@Override
+	public int getOpacity() {
+		return PixelFormat.TRANSLUCENT;
+	}
+
+	@Override
+	public void setAlpha( int alpha ) {
+		mPaint.setAlpha( alpha );
+	}
+
+	@Override
+	public void setColorFilter( ColorFilter cf ) {
+		mPaint.setColorFilter( cf );
+	}
+
+	/**
+	 * Only the paint flags are used: changing the tiles level while moving
+	 * would just trigger more decoding
+	 */
+	@Override
+	public void setRenderQuality( RenderQuality quality ) {
+		mPaint.setFilterBitmap( quality.filter );
+		mPaint.setDither( quality.dither );
+		invalidateSelf();
+	}
+
+	@Override
+	public int getIntrinsicWidth() {
+		return mWidth;
+	}
+
+	@Override
+	public int getIntrinsicHeight() {
+		return mHeight;
+	}
+
+	@Override
+	public int getMinimumWidth() {
+		return mWidth;
+	}
+
+	@Override
+	public int getMinimumHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Returns the low resolution preview of the whole image, or null if not
+	 * decoded yet
+	 */
+	@Override
+	public Bitmap getBitmap() {
+		return mPreview;
+	}
+
+	@Override
+	public void dispose() {
+		if ( mDisposed ) {
+			return;
+		}
+		mDisposed = true;
+		mScheduler.dispose();
+		mVisibleTiles.clear();
+		mDecoderPool.recycle();
+	}
+
+	protected final Runnable mPreviewTask = new Runnable() {
+
+		@Override
+		public void run() {
+			if ( mDisposed ) {
+				return;
+			}
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inSampleSize = mPreviewSampleSize;
+			final Bitmap preview = mDecoderPool.decodeRegion( new Rect( 0, 0, mWidth, mHeight ), options );
+			if ( null == preview ) {
+				return;
+			}
+
+			sHandler.post( new Runnable() {
+
+				@Override
+				public void run() {
+					if ( mDisposed ) {
+						preview.recycle();
+						return;
+					}
+					mPreview = preview;
+					invalidateSelf();
+				}
+			} );
+		}
+	};
+
+	protected final TileScheduler.TileDecoder mTileDecoder = new TileScheduler.TileDecoder() {
+
+		@Override
+		public Bitmap decodeTile( Rect rect, int sampleSize ) {
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inSampleSize = sampleSize;
+			return mDecoderPool.decodeRegion( rect, options );
+		}
+	};
+
+	protected final TileScheduler.Callback mTileCallback = new TileScheduler.Callback() {
+
+		@Override
+		public void onTileReady( TileScheduler.Tile tile ) {
+			if ( !mDisposed ) {
+				invalidateSelf();
+			}
+		}
+	};
+}
@@ -0,0 +1,463 @@
+package it.sephiroth.android.library.imagezoom.loader;
+
+import it.sephiroth.android.library.imagezoom.cache.BitmapPool;
+import it.sephiroth.android.library.imagezoom.cache.DiskCache;
+import it.sephiroth.android.library.imagezoom.cache.MemoryCache;
+import it.sephiroth.android.library.imagezoom.graphics.BitmapDecoder;
+import it.sephiroth.android.library.imagezoom.graphics.DecodePolicy;
+import it.sephiroth.android.library.imagezoom.graphics.FastBitmapDrawable;
+import it.sephiroth.android.library.imagezoom.graphics.IDecodeTarget;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Decode {@link ImageSource}s in background and deliver the result on the UI
+ * thread. Only one request at time is active: a new request, or a call to
+ * {@link #cancel()}, cancels the previous one.<br />
+ * If a {@link MemoryCache} is set it's consulted before decoding, and the
+ * delivered bitmaps are acquired in it: the receiver must call
+ * {@link MemoryCache#release(Bitmap)} once done with them. If a
+ * {@link DiskCache} is set, decoded images are stored there and read back
+ * instead of being decoded again.
+ *
+ */
+public class ImageLoader {
+
+	public interface Callback {
+
+		void onImageLoaded( ImageSource source, Bitmap bitmap );
+
+		void onImageLoadFailed( ImageSource source, Throwable error );
+	}
+
+	private static Executor sDefaultExecutor;
+
+	/**
+	 * Returns the executor shared by all the loaders which have not been
+	 * assigned a custom one
+	 */
+	public static synchronized Executor getDefaultExecutor() {
+		if ( null == sDefaultExecutor ) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor( 2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+				int mCount = 0;
+
+				@Override
+				public Thread newThread( final Runnable r ) {
+					Thread thread = new Thread( new Runnable() {
+
+						@Override
+						public void run() {
+							Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+							r.run();
+						}
+					}, "ImageLoader #" + ( ++mCount ) );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+			executor.allowCoreThreadTimeOut( true );
+			sDefaultExecutor = executor;
+		}
+		return sDefaultExecutor;
+	}
+
+	protected final Context mContext;
+	protected final Handler mHandler = new Handler( Looper.getMainLooper() );
+	protected Executor mExecutor;
+	protected volatile Executor mCacheWriteExecutor;
+	protected volatile BitmapPool mBitmapPool;
+	protected volatile MemoryCache mMemoryCache;
+	protected volatile DiskCache mDiskCache;
+	protected volatile DecodePolicy mDecodePolicy = DecodePolicy.QUALITY;
+	protected LoadTask mCurrentTask;
+
+	public ImageLoader( Context context ) {
+		mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+	}
+
+	/**
+	 * Set the executor used to decode the images. Pass null to use the
+	 * default one
+	 */
+	public void setExecutor( Executor executor ) {
+		mExecutor = executor;
+	}
+
+	/**
+	 * Set the executor used to write the decoded images to the disk cache, so
+	 * the bitmap is delivered without waiting for the write. Writes are only
+	 * deferred when the bitmap is in the memory cache, which keeps it from
+	 * being reused meanwhile. Pass null to write before delivering
+	 */
+	public void setCacheWriteExecutor( Executor executor ) {
+		mCacheWriteExecutor = executor;
+	}
+
+	public Executor getCacheWriteExecutor() {
+		return mCacheWriteExecutor;
+	}
+
+	public Executor getExecutor() {
+		return null != mExecutor ? mExecutor : getDefaultExecutor();
+	}
+
+	/**
+	 * Set the pool the decoded bitmaps will try to reuse memory from. Can be
+	 * null
+	 */
+	public void setBitmapPool( BitmapPool pool ) {
+		mBitmapPool = pool;
+	}
+
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * Set the cache used to store and look up the decoded images. Can be null
+	 */
+	public void setMemoryCache( MemoryCache cache ) {
+		mMemoryCache = cache;
+	}
+
+	public MemoryCache getMemoryCache() {
+		return mMemoryCache;
+	}
+
+	/**
+	 * Set the disk cache used to store the decoded images. Can be null
+	 */
+	public void setDiskCache( DiskCache cache ) {
+		mDiskCache = cache;
+	}
+
+	public DiskCache getDiskCache() {
+		return mDiskCache;
+	}
+
+	/**
+	 * Set the policy used to choose the pixel format of the decoded images,
+	 * unless the source has its own. Pass null for the default
+	 * {@link DecodePolicy#QUALITY}
+	 *
+	 * @see ImageSource#setDecodePolicy(DecodePolicy)
+	 */
+	public void setDecodePolicy( DecodePolicy policy ) {
+		mDecodePolicy = null != policy ? policy : DecodePolicy.QUALITY;
+	}
+
+	public DecodePolicy getDecodePolicy() {
+		return mDecodePolicy;
+	}
+
+	/**
+	 * Wrap a bitmap decoded from the source. The drawable reports the source
+	 * size, if known, so the view computes the zoom range of the full image
+	 */
+	public static FastBitmapDrawable newDrawable( ImageSource source, Bitmap bitmap ) {
+		FastBitmapDrawable drawable = new FastBitmapDrawable( bitmap );
+		Point size = new Point();
+		if ( source.getSize( size ) ) {
+			drawable.setSourceSize( size.x, size.y );
+		}
+		return drawable;
+	}
+
+	/**
+	 * Start decoding the source in background, cancelling any previous request
+	 *
+	 * @param source
+	 *            - the image to decode
+	 * @param target
+	 *            - used to compute the decode size, can be null to decode at
+	 *            full size
+	 * @param callback
+	 *            - invoked on the UI thread once the image is ready, unless the
+	 *            request is cancelled before. If the source has already been
+	 *            loaded and the image is still in the memory cache the
+	 *            callback is invoked immediately
+	 */
+	public void load( ImageSource source, IDecodeTarget target, Callback callback ) {
+		cancel();
+
+		Bitmap cached = getCachedBitmap( source, target );
+		if ( null != cached ) {
+			callback.onImageLoaded( source, cached );
+			return;
+		}
+
+		mCurrentTask = new LoadTask( source, target, callback );
+		getExecutor().execute( mCurrentTask );
+	}
+
+	/**
+	 * Cancel the current request, if any. Must be called from the UI thread
+	 */
+	public void cancel() {
+		if ( null != mCurrentTask ) {
+			mCurrentTask.mCancelled = true;
+			mCurrentTask = null;
+		}
+	}
+
+	public boolean isLoading() {
+		return null != mCurrentTask;
+	}
+
+	/**
+	 * Look up the memory cache without reading the source. Only works if the
+	 * source has already been loaded once
+	 *
+	 * @return the cached bitmap, already acquired, or null
+	 */
+	protected Bitmap getCachedBitmap( ImageSource source, IDecodeTarget target ) {
+		final MemoryCache cache = mMemoryCache;
+		MemoryCache.Key key = getCachedKey( cache, source, target );
+		if ( null == key ) {
+			return null;
+		}
+		return cache.acquire( key );
+	}
+
+	/**
+	 * Returns the size the source will be decoded at, without reading it. Only
+	 * works if the source has already been loaded once
+	 *
+	 * @return false if the size is not known
+	 */
+	public boolean getDecodedSize( ImageSource source, IDecodeTarget target, Point outSize ) {
+		MemoryCache.Key key = getCachedKey( mMemoryCache, source, target );
+		if ( null == key ) {
+			return false;
+		}
+		outSize.set( key.getWidth(), key.getHeight() );
+		return true;
+	}
+
+	/**
+	 * Build the memory cache key of the source from the bounds remembered by
+	 * the cache, or null if not known. It's called from the UI thread, so the
+	 * source identity is the one resolved by the last load: the stamp and the
+	 * key, which can read the source, are only computed in background
+	 */
+	protected MemoryCache.Key getCachedKey( MemoryCache cache, ImageSource source, IDecodeTarget target ) {
+		final String cacheKey = source.getCacheKey();
+		if ( null == cache || null == cacheKey ) {
+			return null;
+		}
+
+		MemoryCache.Bounds bounds = cache.getBounds( cacheKey );
+		if ( null == bounds ) {
+			return null;
+		}
+		source.setSize( bounds.width, bounds.height );
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.outWidth = bounds.width;
+		options.outHeight = bounds.height;
+		options.outMimeType = bounds.mimeType;
+		setupOptions( options, source, target );
+		return new MemoryCache.Key( cacheKey, options, null );
+	}
+
+	/**
+	 * Returns the identity of the source content used by the caches: the
+	 * source key plus its stamp, so a source rewritten in place doesn't
+	 * return the previous image
+	 */
+	protected static String getCacheKey( ImageSource source, String stamp ) {
+		return null != stamp ? source.getKey() + "#" + stamp : source.getKey();
+	}
+
+	protected void setupOptions( BitmapFactory.Options options, ImageSource source, IDecodeTarget target ) {
+		if ( null != target ) {
+			Point size = new Point();
+			target.getDecodeSize( options.outWidth, options.outHeight, size );
+			BitmapDecoder.setupOptions( options, size.x, size.y );
+		} else {
+			BitmapDecoder.setupOptions( options, 0, 0 );
+		}
+
+		DecodePolicy policy = source.getDecodePolicy();
+		( null != policy ? policy : mDecodePolicy ).setupConfig( options );
+	}
+
+	protected Bitmap decode( final ImageSource source, IDecodeTarget target ) throws IOException {
+		final MemoryCache cache = mMemoryCache;
+		final DiskCache diskCache = mDiskCache;
+
+		final String stamp = source.getStamp( mContext );
+		final String cacheKey = getCacheKey( source, stamp );
+		source.setCacheKey( cacheKey );
+
+		// a new instance of an already decoded source: skip the bounds decode
+		Bitmap found = getCachedBitmap( source, target );
+		if ( null != found ) {
+			return found;
+		}
+
+		InputStream is = new BufferedInputStream( source.openStream( mContext ) );
+		try {
+			BitmapFactory.Options options = BitmapDecoder.decodeBounds( is );
+			if ( null == options ) {
+				throw new IOException( "Cannot decode " + source );
+			}
+			source.setSize( options.outWidth, options.outHeight );
+
+			setupOptions( options, source, target );
+
+			MemoryCache.Key key = new MemoryCache.Key( cacheKey, options, null );
+			if ( null != cache ) {
+				cache.putBounds( cacheKey, options.outWidth, options.outHeight, options.outMimeType );
+				Bitmap cached = cache.acquire( key );
+				if ( null != cached ) {
+					return cached;
+				}
+			}
+
+			// the key already holds the stamp
+			final String diskKey = null != diskCache && null != stamp ? key.toString() : null;
+
+			Bitmap bitmap = null;
+			if ( null != diskKey ) {
+				bitmap = diskCache.get( diskKey, mBitmapPool );
+			}
+
+			boolean write = false;
+			if ( null == bitmap ) {
+				bitmap = BitmapDecoder.decode( is, options, mBitmapPool, new BitmapDecoder.StreamOpener() {
+
+					@Override
+					public InputStream open() throws IOException {
+						return new BufferedInputStream( source.openStream( mContext ) );
+					}
+				} );
+				if ( null == bitmap ) {
+					throw new IOException( "Cannot decode " + source );
+				}
+				write = null != diskKey;
+			}
+
+			if ( null != cache ) {
+				cache.put( key, bitmap, true );
+			}
+			if ( write ) {
+				writeDiskCache( diskCache, diskKey, bitmap, cache );
+			}
+			return bitmap;
+		} finally {
+			try {
+				is.close();
+			} catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Dispose a bitmap decoded for a cancelled request
+	 */
+	protected void discard( Bitmap bitmap ) {
+		final MemoryCache cache = mMemoryCache;
+		if ( null != cache && cache.release( bitmap ) ) {
+			return;
+		}
+		if ( null == mBitmapPool || !mBitmapPool.put( bitmap ) ) {
+			bitmap.recycle();
+		}
+	}
+
+	protected void writeDiskCache( final DiskCache diskCache, final String diskKey, final Bitmap bitmap, final MemoryCache cache ) {
+		final Executor executor = mCacheWriteExecutor;
+		if ( null == executor || null == cache || !cache.acquire( bitmap ) ) {
+			diskCache.put( diskKey, bitmap );
+			return;
+		}
+
+		executor.execute( new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					diskCache.put( diskKey, bitmap );
+				} finally {
+					cache.release( bitmap );
+				}
+			}
+		} );
+	}
+
+	protected class LoadTask implements Runnable {
+
+		final ImageSource mSource;
+		final IDecodeTarget mTarget;
+		final Callback mCallback;
+		volatile boolean mCancelled;
+
+		LoadTask( ImageSource source, IDecodeTarget target, Callback callback ) {
+			mSource = source;
+			mTarget = target;
+			mCallback = callback;
+		}
+
+		@Override
+		public void run() {
+			if ( mCancelled ) {
+				return;
+			}
+
+			Bitmap bitmap = null;
+			Throwable error = null;
+
+			try {
+				bitmap = decode( mSource, mTarget );
+			} catch ( IOException e ) {
+				error = e;
+			} catch ( OutOfMemoryError e ) {
+				error = e;
+			} catch ( RuntimeException e ) {
+				// SecurityException from the content resolver, rejected pool bitmaps...
+				error = e;
+			}
+
+			final Bitmap result = bitmap;
+			final Throwable resultError = error;
+
+			mHandler.post( new Runnable() {
+
+				@Override
+				public void run() {
+					if ( mCancelled ) {
+						if ( null != result ) {
+							discard( result );
+						}
+						return;
+					}
+					if ( mCurrentTask == LoadTask.this ) {
+						mCurrentTask = null;
+					}
+
+					if ( null != result ) {
+						mCallback.onImageLoaded( mSource, result );
+					} else {
+						mCallback.onImageLoadFailed( mSource, resultError );
+					}
+				}
+			} );
+		}
+	}
+}
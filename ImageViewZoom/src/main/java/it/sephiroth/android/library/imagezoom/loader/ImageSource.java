@@ -0,0 +1,255 @@
+package it.sephiroth.android.library.imagezoom.loader;
+
+import it.sephiroth.android.library.imagezoom.graphics.DecodePolicy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Point;
+import android.net.Uri;
+
+/**
+ * Source of an image which can be decoded in background by the
+ * {@link ImageLoader}
+ *
+ */
+public abstract class ImageSource {
+
+	private DecodePolicy mDecodePolicy;
+	private int mWidth;
+	private int mHeight;
+	private volatile String mCacheKey;
+
+	/**
+	 * Open a new stream for this source. It can be called more than once
+	 */
+	public abstract InputStream openStream( Context context ) throws IOException;
+
+	/**
+	 * Returns a string which identifies this source
+	 */
+	public abstract String getKey();
+
+	/**
+	 * Returns a string which changes when the source content changes (for
+	 * instance modification time and size), or null if it cannot be known. In
+	 * that case the source is never stored in the disk cache
+	 */
+	public String getStamp( Context context ) {
+		return null;
+	}
+
+	/**
+	 * Override the decode policy of the loader for this image only, for
+	 * instance to keep diagrams with fine gradients in
+	 * {@link DecodePolicy#QUALITY}
+	 *
+	 * @return this source
+	 */
+	public ImageSource setDecodePolicy( DecodePolicy policy ) {
+		mDecodePolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Returns the decode policy set for this image, or null
+	 */
+	public DecodePolicy getDecodePolicy() {
+		return mDecodePolicy;
+	}
+
+	/**
+	 * Returns the size of the image, known once the {@link ImageLoader} has
+	 * read it or found it in the memory cache
+	 *
+	 * @return false if the size is not known yet
+	 */
+	public synchronized boolean getSize( Point outSize ) {
+		if ( mWidth <= 0 || mHeight <= 0 ) {
+			return false;
+		}
+		outSize.set( mWidth, mHeight );
+		return true;
+	}
+
+	synchronized void setSize( int width, int height ) {
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * Returns the identity of the content used by the caches, as resolved by
+	 * the {@link ImageLoader} in background the last time this source was
+	 * loaded, or null. Reading it never touches the source
+	 */
+	String getCacheKey() {
+		return mCacheKey;
+	}
+
+	void setCacheKey( String key ) {
+		mCacheKey = key;
+	}
+
+	@Override
+	public String toString() {
+		return getKey();
+	}
+
+	public static ImageSource fromFile( File file ) {
+		return new FileSource( file );
+	}
+
+	public static ImageSource fromUri( Uri uri ) {
+		return new UriSource( uri );
+	}
+
+	public static ImageSource fromResource( int resId ) {
+		return new ResourceSource( resId );
+	}
+
+	public static ImageSource fromBytes( byte[] data ) {
+		return new BytesSource( data );
+	}
+
+	static class FileSource extends ImageSource {
+
+		final File mFile;
+
+		FileSource( File file ) {
+			mFile = file;
+		}
+
+		@Override
+		public InputStream openStream( Context context ) throws IOException {
+			return new FileInputStream( mFile );
+		}
+
+		@Override
+		public String getKey() {
+			return "file:" + mFile.getAbsolutePath();
+		}
+
+		@Override
+		public String getStamp( Context context ) {
+			if ( !mFile.exists() ) {
+				return null;
+			}
+			return mFile.lastModified() + ":" + mFile.length();
+		}
+	}
+
+	static class UriSource extends ImageSource {
+
+		final Uri mUri;
+
+		UriSource( Uri uri ) {
+			mUri = uri;
+		}
+
+		@Override
+		public InputStream openStream( Context context ) throws IOException {
+			InputStream is = context.getContentResolver().openInputStream( mUri );
+			if ( null == is ) {
+				throw new IOException( "Cannot open " + mUri );
+			}
+			return is;
+		}
+
+		@Override
+		public String getKey() {
+			return "uri:" + mUri.toString();
+		}
+
+		@Override
+		public String getStamp( Context context ) {
+			if ( "file".equals( mUri.getScheme() ) && null != mUri.getPath() ) {
+				File file = new File( mUri.getPath() );
+				if ( file.exists() ) {
+					return file.lastModified() + ":" + file.length();
+				}
+			}
+			return null;
+		}
+	}
+
+	static class ResourceSource extends ImageSource {
+
+		final int mResId;
+
+		ResourceSource( int resId ) {
+			mResId = resId;
+		}
+
+		@Override
+		public InputStream openStream( Context context ) throws IOException {
+			return context.getResources().openRawResource( mResId );
+		}
+
+		@Override
+		public String getKey() {
+			return "res:" + mResId;
+		}
+
+		/**
+		 * Resources only change when the application is updated
+		 */
+		@Override
+		public String getStamp( Context context ) {
+			try {
+				return String.valueOf( context.getPackageManager().getPackageInfo( context.getPackageName(), 0 ).lastUpdateTime );
+			} catch ( PackageManager.NameNotFoundException e ) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Identified by its content: the same array filled again, or two arrays
+	 * with the same identity hash, are different images
+	 */
+	static class BytesSource extends ImageSource {
+
+		final byte[] mData;
+		private volatile String mKey;
+
+		BytesSource( byte[] data ) {
+			mData = data;
+		}
+
+		@Override
+		public InputStream openStream( Context context ) throws IOException {
+			return new ByteArrayInputStream( mData );
+		}
+
+		@Override
+		public String getKey() {
+			String key = mKey;
+			if ( null == key ) {
+				key = "bytes:" + digest( mData ) + ":" + mData.length;
+				mKey = key;
+			}
+			return key;
+		}
+
+		static String digest( byte[] data ) {
+			try {
+				byte[] hash = MessageDigest.getInstance( "SHA-1" ).digest( data );
+				StringBuilder builder = new StringBuilder( hash.length * 2 );
+				for ( byte b : hash ) {
+					builder.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+				}
+				return builder.toString();
+			} catch ( NoSuchAlgorithmException e ) {
+				return Integer.toHexString( Arrays.hashCode( data ) );
+			}
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package it.sephiroth.android.library.imagezoom.loader;
+
+/**
+ * Provides the pages of a document displayed page by page
+ *
+ */
+public interface PageProvider {
+
+	int getPageCount();
+
+	/**
+	 * Returns the source of the given page
+	 *
+	 * @param page
+	 *            - page index, between 0 and {@link #getPageCount()} - 1
+	 */
+	ImageSource getPageSource( int page );
+}
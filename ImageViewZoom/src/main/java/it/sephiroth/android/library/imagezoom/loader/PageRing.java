@@ -0,0 +1,292 @@
+package it.sephiroth.android.library.imagezoom.loader;
+
+import it.sephiroth.android.library.imagezoom.cache.BitmapPool;
+import it.sephiroth.android.library.imagezoom.cache.DiskCache;
+import it.sephiroth.android.library.imagezoom.cache.MemoryCache;
+import it.sephiroth.android.library.imagezoom.core.Affine;
+import it.sephiroth.android.library.imagezoom.graphics.DecodePolicy;
+import it.sephiroth.android.library.imagezoom.graphics.IDecodeTarget;
+
+import java.util.concurrent.Executor;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Ring buffer of 2 * k + 1 pages around the current one. When the current
+ * page changes the pages out of the window are released and the missing
+ * neighbours are decoded in background, nearest first. Must be used from the
+ * UI thread only.
+ *
+ */
+public class PageRing {
+
+	public interface Callback {
+
+		/**
+		 * A page has been decoded. The base matrix of the slot should be
+		 * computed here
+		 */
+		void onPageLoaded( PageRing ring, Slot slot );
+
+		void onPageLoadFailed( PageRing ring, int page, Throwable error );
+
+		/**
+		 * The page drawable is no more used by the ring
+		 */
+		void onPageReleased( PageRing ring, Drawable drawable );
+	}
+
+	public static final class Slot {
+
+		int page = -1;
+		Drawable drawable;
+		boolean baseMatrixValid;
+		float maxZoom;
+		final Affine baseMatrix = new Affine();
+		final ImageLoader loader;
+		/** the executor the pending request was submitted to */
+		Executor executor;
+
+		Slot( ImageLoader loader ) {
+			this.loader = loader;
+		}
+
+		public int getPage() {
+			return page;
+		}
+
+		public Drawable getDrawable() {
+			return drawable;
+		}
+
+		/**
+		 * The base matrix precomputed for this page
+		 */
+		public Affine getBaseMatrix() {
+			return baseMatrix;
+		}
+
+		public boolean isBaseMatrixValid() {
+			return baseMatrixValid;
+		}
+
+		public void setBaseMatrixValid( boolean value ) {
+			baseMatrixValid = value;
+		}
+
+		/**
+		 * The max zoom precomputed for this page
+		 */
+		public float getMaxZoom() {
+			return maxZoom;
+		}
+
+		public void setMaxZoom( float value ) {
+			maxZoom = value;
+		}
+
+		public boolean isReady() {
+			return null != drawable;
+		}
+	}
+
+	protected final PageProvider mProvider;
+	protected final IDecodeTarget mTarget;
+	protected final Callback mCallback;
+	protected final Slot[] mSlots;
+	protected final int mDistance;
+	protected int mCurrentPage = -1;
+	protected Executor mCurrentExecutor;
+	protected Executor mNeighbourExecutor;
+
+	/**
+	 * @param distance
+	 *            - number of pages prefetched on each side of the current one
+	 */
+	public PageRing( Context context, PageProvider provider, int distance, IDecodeTarget target, Callback callback ) {
+		mProvider = provider;
+		mTarget = target;
+		mCallback = callback;
+		mDistance = Math.max( 0, distance );
+		mSlots = new Slot[mDistance * 2 + 1];
+		for ( int i = 0; i < mSlots.length; i++ ) {
+			mSlots[i] = new Slot( new ImageLoader( context ) );
+		}
+	}
+
+	public void setExecutor( Executor executor ) {
+		setExecutors( executor, executor );
+	}
+
+	/**
+	 * @param currentExecutor
+	 *            - decodes the current page
+	 * @param neighbourExecutor
+	 *            - decodes the prefetched pages
+	 */
+	public void setExecutors( Executor currentExecutor, Executor neighbourExecutor ) {
+		mCurrentExecutor = currentExecutor;
+		mNeighbourExecutor = neighbourExecutor;
+	}
+
+	public void setCacheWriteExecutor( Executor executor ) {
+		for ( Slot slot : mSlots ) {
+			slot.loader.setCacheWriteExecutor( executor );
+		}
+	}
+
+	public void setCaches( BitmapPool pool, MemoryCache memoryCache, DiskCache diskCache ) {
+		for ( Slot slot : mSlots ) {
+			slot.loader.setBitmapPool( pool );
+			slot.loader.setMemoryCache( memoryCache );
+			slot.loader.setDiskCache( diskCache );
+		}
+	}
+
+	public void setDecodePolicy( DecodePolicy policy ) {
+		for ( Slot slot : mSlots ) {
+			slot.loader.setDecodePolicy( policy );
+		}
+	}
+
+	public PageProvider getProvider() {
+		return mProvider;
+	}
+
+	public int getPageCount() {
+		return mProvider.getPageCount();
+	}
+
+	public int getCurrentPage() {
+		return mCurrentPage;
+	}
+
+	public int getDistance() {
+		return mDistance;
+	}
+
+	public boolean hasPage( int page ) {
+		return page >= 0 && page < getPageCount();
+	}
+
+	/**
+	 * Returns the slot of the page if it's inside the ring window, otherwise
+	 * null
+	 */
+	public Slot getSlot( int page ) {
+		if ( !hasPage( page ) ) {
+			return null;
+		}
+		Slot slot = mSlots[indexOf( page )];
+		return slot.page == page ? slot : null;
+	}
+
+	/**
+	 * Returns true if the page has been decoded
+	 */
+	public boolean isReady( int page ) {
+		Slot slot = getSlot( page );
+		return null != slot && slot.isReady();
+	}
+
+	/**
+	 * Move the window to the given page and start loading the missing pages,
+	 * the current one first then the nearest neighbours. The pages which
+	 * failed to load are tried again
+	 */
+	public void setCurrentPage( int page ) {
+		if ( !hasPage( page ) ) {
+			return;
+		}
+		mCurrentPage = page;
+
+		for ( int d = 0; d <= mDistance; d++ ) {
+			ensure( page + d );
+			if ( d > 0 ) {
+				ensure( page - d );
+			}
+		}
+	}
+
+	/**
+	 * Invalidate all the precomputed base matrices, for instance after the
+	 * view size changed
+	 */
+	public void invalidateBaseMatrices() {
+		for ( Slot slot : mSlots ) {
+			slot.baseMatrixValid = false;
+		}
+	}
+
+	public Slot[] getSlots() {
+		return mSlots;
+	}
+
+	/**
+	 * Release all the pages and cancel the pending requests
+	 */
+	public void clear() {
+		for ( Slot slot : mSlots ) {
+			release( slot );
+		}
+		mCurrentPage = -1;
+	}
+
+	protected void ensure( final int page ) {
+		if ( !hasPage( page ) ) {
+			return;
+		}
+
+		final Slot slot = mSlots[indexOf( page )];
+		if ( slot.page == page ) {
+			// a neighbour still loading when it becomes the current page is
+			// submitted again, it must not wait for the end of the gesture
+			if ( slot.isReady() || page != mCurrentPage || slot.executor == mCurrentExecutor ) {
+				return;
+			}
+			slot.loader.cancel();
+		} else {
+			release( slot );
+			slot.page = page;
+		}
+
+		slot.executor = page == mCurrentPage ? mCurrentExecutor : mNeighbourExecutor;
+		slot.loader.setExecutor( slot.executor );
+		slot.loader.load( mProvider.getPageSource( page ), mTarget, new ImageLoader.Callback() {
+
+			@Override
+			public void onImageLoaded( ImageSource source, Bitmap bitmap ) {
+				slot.executor = null;
+				slot.drawable = ImageLoader.newDrawable( source, bitmap );
+				slot.baseMatrixValid = false;
+				mCallback.onPageLoaded( PageRing.this, slot );
+			}
+
+			@Override
+			public void onImageLoadFailed( ImageSource source, Throwable error ) {
+				// loaded again the next time the window moves over it
+				slot.page = -1;
+				slot.executor = null;
+				mCallback.onPageLoadFailed( PageRing.this, page, error );
+			}
+		} );
+	}
+
+	protected void release( Slot slot ) {
+		slot.loader.cancel();
+		if ( null != slot.drawable ) {
+			Drawable drawable = slot.drawable;
+			slot.drawable = null;
+			mCallback.onPageReleased( this, drawable );
+		}
+		slot.page = -1;
+		slot.executor = null;
+		slot.baseMatrixValid = false;
+	}
+
+	protected int indexOf( int page ) {
+		return page % mSlots.length;
+	}
+}
@@ -0,0 +1,268 @@
+package it.sephiroth.android.library.imagezoom.loader;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+
+/**
+ * Keeps the background work out of the way while the user interacts with
+ * the view. The work is submitted with a {@link Priority}:
+ * <ul>
+ * <li>{@link Priority#VISIBLE}: needed for what is on screen, runs at once</li>
+ * <li>{@link Priority#BACKGROUND}: content not visible yet, like the
+ * neighbour pages. Queued while a gesture or an animation runs</li>
+ * <li>{@link Priority#IDLE}: deferred work, like the pyramid levels and the
+ * disk cache writes. Started once the UI thread is idle and no gesture runs</li>
+ * </ul>
+ * The visible work runs by default on {@link ImageLoader#getDefaultExecutor()},
+ * the other work on {@link #getDefaultLowPriorityExecutor()}, so once resumed
+ * it doesn't delay the next visible decode. Host apps can plug in their own
+ * executors with {@link #setExecutor(Priority, Executor)}.<br />
+ * {@link #setInteracting(boolean)} must be called from the UI thread, the
+ * other methods from any thread.
+ *
+ */
+public class WorkScheduler {
+
+	public enum Priority {
+		VISIBLE, BACKGROUND, IDLE
+	}
+
+	private static Executor sLowPriorityExecutor;
+
+	/**
+	 * Returns the executor shared by the background and idle work of all the
+	 * schedulers: a single thread with the lowest priority
+	 */
+	public static synchronized Executor getDefaultLowPriorityExecutor() {
+		if ( null == sLowPriorityExecutor ) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor( 1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+				@Override
+				public Thread newThread( final Runnable r ) {
+					Thread thread = new Thread( new Runnable() {
+
+						@Override
+						public void run() {
+							Process.setThreadPriority( Process.THREAD_PRIORITY_LOWEST );
+							r.run();
+						}
+					}, "WorkScheduler" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+			executor.allowCoreThreadTimeOut( true );
+			sLowPriorityExecutor = executor;
+		}
+		return sLowPriorityExecutor;
+	}
+
+	protected final Handler mHandler = new Handler( Looper.getMainLooper() );
+	protected final Executor[] mExecutors = new Executor[Priority.values().length];
+	protected final Executor[] mSchedulerExecutors = new Executor[Priority.values().length];
+
+	/** work held back, guarded by this */
+	protected final ArrayList<Runnable> mBackgroundQueue = new ArrayList<Runnable>();
+	protected final ArrayList<Runnable> mIdleQueue = new ArrayList<Runnable>();
+	protected boolean mIdleScheduled;
+	protected boolean mInteracting;
+
+	private int mDeferredCount;
+
+	public WorkScheduler() {
+		for ( final Priority priority : Priority.values() ) {
+			mSchedulerExecutors[priority.ordinal()] = new Executor() {
+
+				@Override
+				public void execute( Runnable command ) {
+					WorkScheduler.this.execute( priority, command );
+				}
+			};
+		}
+	}
+
+	/**
+	 * Set the executor which runs the work of the given priority. Pass null
+	 * to use the default one
+	 */
+	public synchronized void setExecutor( Priority priority, Executor executor ) {
+		mExecutors[priority.ordinal()] = executor;
+	}
+
+	/**
+	 * Returns an executor which submits to this scheduler with the given
+	 * priority
+	 */
+	public Executor getExecutor( Priority priority ) {
+		return mSchedulerExecutors[priority.ordinal()];
+	}
+
+	public void execute( Priority priority, Runnable task ) {
+		if ( Priority.IDLE == priority ) {
+			synchronized ( this ) {
+				mIdleQueue.add( task );
+				mDeferredCount++;
+				if ( mIdleScheduled ) {
+					return;
+				}
+				mIdleScheduled = true;
+			}
+			// idle handlers must be added from the looper thread
+			mHandler.post( mAddIdleHandler );
+			return;
+		}
+
+		if ( Priority.BACKGROUND == priority ) {
+			synchronized ( this ) {
+				if ( mInteracting ) {
+					mBackgroundQueue.add( task );
+					mDeferredCount++;
+					return;
+				}
+			}
+		}
+		getTarget( priority ).execute( task );
+	}
+
+	/**
+	 * Called by the view every time a gesture or an animation starts or ends.
+	 * The background work queued meanwhile is started once it ends
+	 */
+	public void setInteracting( boolean interacting ) {
+		ArrayList<Runnable> resumed = null;
+		boolean idlePending;
+		synchronized ( this ) {
+			if ( mInteracting == interacting ) {
+				return;
+			}
+			mInteracting = interacting;
+			if ( !interacting && !mBackgroundQueue.isEmpty() ) {
+				resumed = new ArrayList<Runnable>( mBackgroundQueue );
+				mBackgroundQueue.clear();
+			}
+			idlePending = !interacting && mIdleScheduled;
+		}
+
+		if ( null != resumed ) {
+			final Executor executor = getTarget( Priority.BACKGROUND );
+			for ( int i = 0; i < resumed.size(); i++ ) {
+				executor.execute( resumed.get( i ) );
+			}
+		}
+
+		if ( idlePending ) {
+			// wake the looper up, so the idle handler runs again
+			mHandler.post( mWakeUp );
+		}
+	}
+
+	public synchronized boolean isInteracting() {
+		return mInteracting;
+	}
+
+	/**
+	 * Returns the number of tasks held back, waiting for the end of the
+	 * gesture or for the UI thread to be idle
+	 */
+	public synchronized int getPendingCount( Priority priority ) {
+		switch ( priority ) {
+			case BACKGROUND:
+				return mBackgroundQueue.size();
+			case IDLE:
+				return mIdleQueue.size();
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Returns the total number of tasks which have been held back
+	 */
+	public synchronized int getDeferredCount() {
+		return mDeferredCount;
+	}
+
+	/**
+	 * Drop the work held back and not started yet. The scheduler can still be
+	 * used afterwards
+	 */
+	public void clear() {
+		synchronized ( this ) {
+			mBackgroundQueue.clear();
+			mIdleQueue.clear();
+			mIdleScheduled = false;
+		}
+		mHandler.removeCallbacks( mAddIdleHandler );
+		mHandler.removeCallbacks( mWakeUp );
+		// idle handlers must be removed from the looper thread
+		mHandler.post( mRemoveIdleHandler );
+	}
+
+	protected synchronized Executor getTarget( Priority priority ) {
+		final Executor executor = mExecutors[priority.ordinal()];
+		if ( null != executor ) {
+			return executor;
+		}
+		return Priority.VISIBLE == priority ? ImageLoader.getDefaultExecutor() : getDefaultLowPriorityExecutor();
+	}
+
+	private final Runnable mAddIdleHandler = new Runnable() {
+
+		@Override
+		public void run() {
+			Looper.myQueue().addIdleHandler( mIdleHandler );
+		}
+	};
+
+	private final Runnable mRemoveIdleHandler = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized ( WorkScheduler.this ) {
+				if ( mIdleScheduled ) {
+					// new idle work submitted after clear()
+					return;
+				}
+			}
+			Looper.myQueue().removeIdleHandler( mIdleHandler );
+		}
+	};
+
+	private final Runnable mWakeUp = new Runnable() {
+
+		@Override
+		public void run() {}
+	};
+
+	private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+
+		@Override
+		public boolean queueIdle() {
+			final ArrayList<Runnable> tasks;
+			synchronized ( WorkScheduler.this ) {
+				if ( mInteracting ) {
+					// keep the handler, it runs again at the next idle time
+					return true;
+				}
+				tasks = new ArrayList<Runnable>( mIdleQueue );
+				mIdleQueue.clear();
+				mIdleScheduled = false;
+			}
+
+			final Executor executor = getTarget( Priority.IDLE );
+			for ( int i = 0; i < tasks.size(); i++ ) {
+				executor.execute( tasks.get( i ) );
+			}
+			return false;
+		}
+	};
+}
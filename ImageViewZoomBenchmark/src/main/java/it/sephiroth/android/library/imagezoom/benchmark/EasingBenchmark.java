@@ -0,0 +1,56 @@
+package it.sephiroth.android.library.imagezoom.benchmark;
+
+import it.sephiroth.android.library.imagezoom.easing.Cubic;
+import it.sephiroth.android.library.imagezoom.easing.Easing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the easing functions evaluated once per animation frame
+ *
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class EasingBenchmark {
+
+	static final double DURATION = 300;
+
+	final Easing mEasing = new Cubic();
+	double mTime;
+
+	/**
+	 * Walk through the whole animation, so the result can't be constant
+	 * folded
+	 */
+	double nextTime() {
+		mTime += 16.6;
+		if ( mTime > DURATION ) {
+			mTime = 0;
+		}
+		return mTime;
+	}
+
+	@Benchmark
+	public double easeOut() {
+		return mEasing.easeOut( nextTime(), 0, 1000, DURATION );
+	}
+
+	@Benchmark
+	public double easeInOut() {
+		return mEasing.easeInOut( nextTime(), 0, 1000, DURATION );
+	}
+}
@@ -0,0 +1,135 @@
+package it.sephiroth.android.library.imagezoom.benchmark;
+
+import it.sephiroth.android.library.imagezoom.core.Affine;
+import it.sephiroth.android.library.imagezoom.core.FloatRect;
+import it.sephiroth.android.library.imagezoom.core.ZoomPanEngine;
+import it.sephiroth.android.library.imagezoom.core.ZoomType;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the per event paths of a gesture frame. Each benchmark calls the
+ * {@link ZoomPanEngine} method the view delegates to:
+ * <ul>
+ * <li>getImageViewMatrix: {@link ZoomPanEngine#getDisplayMatrix(Affine)} plus the conversion to matrix values</li>
+ * <li>getBitmapRect: {@link ZoomPanEngine#getBitmapRect()}</li>
+ * <li>center/getCenter: {@link ZoomPanEngine#center(boolean, boolean)}, {@link ZoomPanEngine#getCenter(boolean, boolean)}</li>
+ * <li>updateRect: {@link ZoomPanEngine#clampScroll(FloatRect, FloatRect)}</li>
+ * <li>panBy, zoomTo: {@link ZoomPanEngine#panBy(float, float)}, {@link ZoomPanEngine#zoomTo(float, float, float, float)}</li>
+ * </ul>
+ * None of them should allocate: run with <code>-prof gc</code> and check
+ * <code>gc.alloc.rate.norm</code> is 0.
+ *
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ZoomPanBenchmark {
+
+	@Param( { "800x600", "4000x3000", "12000x9000" } )
+	public String imageSize;
+
+	@Param( { "720x1280", "1080x1920", "2560x1600" } )
+	public String viewSize;
+
+	@Param( { "FIT_TO_SCREEN_SMALL", "FIT_TO_WIDTH" } )
+	public ZoomType zoomType;
+
+	ZoomPanEngine mEngine;
+	Affine mBaseMatrix;
+	final Affine mDisplayMatrix = new Affine();
+	final float[] mValues = new float[9];
+	final FloatRect mScrollRect = new FloatRect();
+
+	float mViewWidth;
+	float mViewHeight;
+	float mMaxZoom;
+	float mStep = 10;
+	boolean mZoomIn;
+
+	@Setup( Level.Trial )
+	public void setup() {
+		final int[] image = parseSize( imageSize );
+		final int[] view = parseSize( viewSize );
+		mViewWidth = view[0];
+		mViewHeight = view[1];
+		mMaxZoom = ZoomPanEngine.computeMaxZoom( image[0], image[1], mViewWidth, mViewHeight );
+
+		mBaseMatrix = new Affine();
+		ZoomPanEngine.computeBaseMatrix( zoomType, mViewWidth, mViewHeight, image[0], image[1], mMaxZoom, mBaseMatrix );
+
+		mEngine = new ZoomPanEngine();
+		mEngine.setViewSize( mViewWidth, mViewHeight );
+		mEngine.setContent( mBaseMatrix, image[0], image[1] );
+		// zoomed in, so that scrolling and clamping have something to do
+		mEngine.zoomTo( 2f, mViewWidth / 2, mViewHeight / 2, mMaxZoom );
+	}
+
+	@Benchmark
+	public float[] getImageViewMatrix() {
+		mEngine.getDisplayMatrix( mDisplayMatrix );
+		mDisplayMatrix.getValues( mValues );
+		return mValues;
+	}
+
+	@Benchmark
+	public FloatRect getBitmapRect() {
+		return mEngine.getBitmapRect();
+	}
+
+	@Benchmark
+	public FloatRect getCenter() {
+		return mEngine.getCenter( true, true );
+	}
+
+	@Benchmark
+	public boolean center() {
+		// move off the edges first, otherwise there's nothing to center
+		mEngine.postTranslate( mStep, mStep );
+		return mEngine.center( true, true );
+	}
+
+	@Benchmark
+	public FloatRect updateRect() {
+		FloatRect rect = mEngine.getBitmapRect();
+		mScrollRect.set( mStep, -mStep, 0, 0 );
+		mEngine.clampScroll( rect, mScrollRect );
+		return mScrollRect;
+	}
+
+	@Benchmark
+	public float panBy() {
+		// back and forth, so the image never sticks to an edge
+		mStep = -mStep;
+		mEngine.panBy( mStep, mStep );
+		return mEngine.getTranslateX();
+	}
+
+	@Benchmark
+	public float zoomTo() {
+		mZoomIn = !mZoomIn;
+		mEngine.zoomTo( mZoomIn ? 2.5f : 1.5f, mViewWidth / 3, mViewHeight / 3, mMaxZoom );
+		return mEngine.getScale();
+	}
+
+	static int[] parseSize( String value ) {
+		final int index = value.indexOf( 'x' );
+		return new int[] { Integer.parseInt( value.substring( 0, index ) ), Integer.parseInt( value.substring( index + 1 ) ) };
+	}
+}
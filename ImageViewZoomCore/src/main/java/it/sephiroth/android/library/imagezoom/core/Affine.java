@@ -0,0 +1,240 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+/**
+ * 2D affine transform, the plain Java counterpart of
+ * <code>android.graphics.Matrix</code> without perspective.<br />
+ * The values are laid out like the Android ones, so {@link #getValues(float[])}
+ * and {@link #setValues(float[])} can be used to convert between the two.
+ *
+ */
+public class Affine {
+
+	public static final int MSCALE_X = 0;
+	public static final int MSKEW_X = 1;
+	public static final int MTRANS_X = 2;
+	public static final int MSKEW_Y = 3;
+	public static final int MSCALE_Y = 4;
+	public static final int MTRANS_Y = 5;
+	public static final int MPERSP_0 = 6;
+	public static final int MPERSP_1 = 7;
+	public static final int MPERSP_2 = 8;
+
+	float mScaleX = 1;
+	float mSkewX;
+	float mTransX;
+	float mSkewY;
+	float mScaleY = 1;
+	float mTransY;
+
+	public Affine() {}
+
+	public Affine( Affine src ) {
+		set( src );
+	}
+
+	public void reset() {
+		mScaleX = 1;
+		mSkewX = 0;
+		mTransX = 0;
+		mSkewY = 0;
+		mScaleY = 1;
+		mTransY = 0;
+	}
+
+	public void set( Affine src ) {
+		if ( null == src ) {
+			reset();
+			return;
+		}
+		mScaleX = src.mScaleX;
+		mSkewX = src.mSkewX;
+		mTransX = src.mTransX;
+		mSkewY = src.mSkewY;
+		mScaleY = src.mScaleY;
+		mTransY = src.mTransY;
+	}
+
+	public boolean isIdentity() {
+		return mScaleX == 1 && mSkewX == 0 && mTransX == 0 && mSkewY == 0 && mScaleY == 1 && mTransY == 0;
+	}
+
+	/**
+	 * Returns true if the transform only scales and translates
+	 */
+	public boolean isScaleTranslate() {
+		return mSkewX == 0 && mSkewY == 0;
+	}
+
+	public float getScaleX() {
+		return mScaleX;
+	}
+
+	public float getScaleY() {
+		return mScaleY;
+	}
+
+	public float getTranslateX() {
+		return mTransX;
+	}
+
+	public float getTranslateY() {
+		return mTransY;
+	}
+
+	public void setScale( float sx, float sy ) {
+		reset();
+		mScaleX = sx;
+		mScaleY = sy;
+	}
+
+	public void setTranslate( float dx, float dy ) {
+		reset();
+		mTransX = dx;
+		mTransY = dy;
+	}
+
+	/**
+	 * Set a scale followed by a translation
+	 */
+	public void setScaleTranslate( float sx, float sy, float dx, float dy ) {
+		mScaleX = sx;
+		mSkewX = 0;
+		mTransX = dx;
+		mSkewY = 0;
+		mScaleY = sy;
+		mTransY = dy;
+	}
+
+	public void preScale( float sx, float sy ) {
+		mScaleX *= sx;
+		mSkewY *= sx;
+		mSkewX *= sy;
+		mScaleY *= sy;
+	}
+
+	public void postScale( float sx, float sy ) {
+		mScaleX *= sx;
+		mSkewX *= sx;
+		mTransX *= sx;
+		mSkewY *= sy;
+		mScaleY *= sy;
+		mTransY *= sy;
+	}
+
+	/**
+	 * Post scale around the pivot point (px, py)
+	 */
+	public void postScale( float sx, float sy, float px, float py ) {
+		postTranslate( -px, -py );
+		postScale( sx, sy );
+		postTranslate( px, py );
+	}
+
+	public void postTranslate( float dx, float dy ) {
+		mTransX += dx;
+		mTransY += dy;
+	}
+
+	/**
+	 * this = other * this
+	 */
+	public void postConcat( Affine other ) {
+		final float sx = other.mScaleX * mScaleX + other.mSkewX * mSkewY;
+		final float kx = other.mScaleX * mSkewX + other.mSkewX * mScaleY;
+		final float tx = other.mScaleX * mTransX + other.mSkewX * mTransY + other.mTransX;
+		final float ky = other.mSkewY * mScaleX + other.mScaleY * mSkewY;
+		final float sy = other.mSkewY * mSkewX + other.mScaleY * mScaleY;
+		final float ty = other.mSkewY * mTransX + other.mScaleY * mTransY + other.mTransY;
+		mScaleX = sx;
+		mSkewX = kx;
+		mTransX = tx;
+		mSkewY = ky;
+		mScaleY = sy;
+		mTransY = ty;
+	}
+
+	/**
+	 * Map the rect in place, the result is the bounds of the transformed
+	 * corners
+	 */
+	public void mapRect( FloatRect rect ) {
+		if ( isScaleTranslate() ) {
+			float l = rect.left * mScaleX + mTransX;
+			float r = rect.right * mScaleX + mTransX;
+			float t = rect.top * mScaleY + mTransY;
+			float b = rect.bottom * mScaleY + mTransY;
+			rect.set( Math.min( l, r ), Math.min( t, b ), Math.max( l, r ), Math.max( t, b ) );
+			return;
+		}
+
+		float x0 = mapX( rect.left, rect.top ), y0 = mapY( rect.left, rect.top );
+		float x1 = mapX( rect.right, rect.top ), y1 = mapY( rect.right, rect.top );
+		float x2 = mapX( rect.left, rect.bottom ), y2 = mapY( rect.left, rect.bottom );
+		float x3 = mapX( rect.right, rect.bottom ), y3 = mapY( rect.right, rect.bottom );
+		rect.set( Math.min( Math.min( x0, x1 ), Math.min( x2, x3 ) ), Math.min( Math.min( y0, y1 ), Math.min( y2, y3 ) ),
+				Math.max( Math.max( x0, x1 ), Math.max( x2, x3 ) ), Math.max( Math.max( y0, y1 ), Math.max( y2, y3 ) ) );
+	}
+
+	public float mapX( float x, float y ) {
+		return x * mScaleX + y * mSkewX + mTransX;
+	}
+
+	public float mapY( float x, float y ) {
+		return x * mSkewY + y * mScaleY + mTransY;
+	}
+
+	/**
+	 * Copy the values in a 9 elements array, in the
+	 * <code>android.graphics.Matrix</code> order
+	 */
+	public void getValues( float[] values ) {
+		values[MSCALE_X] = mScaleX;
+		values[MSKEW_X] = mSkewX;
+		values[MTRANS_X] = mTransX;
+		values[MSKEW_Y] = mSkewY;
+		values[MSCALE_Y] = mScaleY;
+		values[MTRANS_Y] = mTransY;
+		values[MPERSP_0] = 0;
+		values[MPERSP_1] = 0;
+		values[MPERSP_2] = 1;
+	}
+
+	/**
+	 * Set the values from a 9 elements array, the perspective ones are
+	 * ignored
+	 */
+	public void setValues( float[] values ) {
+		mScaleX = values[MSCALE_X];
+		mSkewX = values[MSKEW_X];
+		mTransX = values[MTRANS_X];
+		mSkewY = values[MSKEW_Y];
+		mScaleY = values[MSCALE_Y];
+		mTransY = values[MTRANS_Y];
+	}
+
+	@Override
+	public boolean equals( Object o ) {
+		if ( !( o instanceof Affine ) ) {
+			return false;
+		}
+		Affine other = (Affine) o;
+		return mScaleX == other.mScaleX && mSkewX == other.mSkewX && mTransX == other.mTransX && mSkewY == other.mSkewY
+				&& mScaleY == other.mScaleY && mTransY == other.mTransY;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = Float.floatToIntBits( mScaleX );
+		result = 31 * result + Float.floatToIntBits( mSkewX );
+		result = 31 * result + Float.floatToIntBits( mTransX );
+		result = 31 * result + Float.floatToIntBits( mSkewY );
+		result = 31 * result + Float.floatToIntBits( mScaleY );
+		result = 31 * result + Float.floatToIntBits( mTransY );
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "Affine[" + mScaleX + ", " + mSkewX + ", " + mTransX + "][" + mSkewY + ", " + mScaleY + ", " + mTransY + "]";
+	}
+}
@@ -0,0 +1,67 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+/**
+ * Float rectangle, the plain Java counterpart of
+ * <code>android.graphics.RectF</code>
+ *
+ */
+public class FloatRect {
+
+	public float left;
+	public float top;
+	public float right;
+	public float bottom;
+
+	public FloatRect() {}
+
+	public FloatRect( float left, float top, float right, float bottom ) {
+		set( left, top, right, bottom );
+	}
+
+	public void set( float left, float top, float right, float bottom ) {
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+
+	public void set( FloatRect src ) {
+		set( src.left, src.top, src.right, src.bottom );
+	}
+
+	public void setEmpty() {
+		left = top = right = bottom = 0;
+	}
+
+	public boolean isEmpty() {
+		return left >= right || top >= bottom;
+	}
+
+	public float width() {
+		return right - left;
+	}
+
+	public float height() {
+		return bottom - top;
+	}
+
+	public float centerX() {
+		return ( left + right ) * 0.5f;
+	}
+
+	public float centerY() {
+		return ( top + bottom ) * 0.5f;
+	}
+
+	public void offset( float dx, float dy ) {
+		left += dx;
+		right += dx;
+		top += dy;
+		bottom += dy;
+	}
+
+	@Override
+	public String toString() {
+		return "FloatRect(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+	}
+}
@@ -0,0 +1,195 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+/**
+ * Immutable description of what is visible at a given time: the visible
+ * part of the content, in content coordinates, the effective scale and how
+ * fast the visible area is moving.<br />
+ * A new instance is published every time the display matrix changes, each
+ * with a higher sequence number, so it can be read from any thread. Work
+ * started for a snapshot is outdated once the published sequence is higher.
+ *
+ */
+public final class ViewportSnapshot {
+
+	/** snapshot of a view without content */
+	public static final ViewportSnapshot EMPTY = new ViewportSnapshot( 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 );
+
+	/** time constant of the velocity smoothing, about three frames at 60fps */
+	public static final float VELOCITY_TIME_CONSTANT = 0.05f;
+
+	private final long mSequence;
+	private final long mTimeNanos;
+	private final float mLeft;
+	private final float mTop;
+	private final float mRight;
+	private final float mBottom;
+	private final float mScaleX;
+	private final float mScaleY;
+	private final float mVelocityX;
+	private final float mVelocityY;
+	private final float mViewWidth;
+	private final float mViewHeight;
+	private final float mContentWidth;
+	private final float mContentHeight;
+
+	public ViewportSnapshot( long sequence, long timeNanos, float left, float top, float right, float bottom, float scaleX, float scaleY,
+			float velocityX, float velocityY, float viewWidth, float viewHeight, float contentWidth, float contentHeight ) {
+		mSequence = sequence;
+		mTimeNanos = timeNanos;
+		mLeft = left;
+		mTop = top;
+		mRight = right;
+		mBottom = bottom;
+		mScaleX = scaleX;
+		mScaleY = scaleY;
+		mVelocityX = velocityX;
+		mVelocityY = velocityY;
+		mViewWidth = viewWidth;
+		mViewHeight = viewHeight;
+		mContentWidth = contentWidth;
+		mContentHeight = contentHeight;
+	}
+
+	/**
+	 * Capture the current state of the engine
+	 *
+	 * @param sequence
+	 *            - must be higher than the previous snapshot one
+	 * @param timeNanos
+	 *            - the current time, from {@link System#nanoTime()}
+	 * @param previous
+	 *            - the previous snapshot, used to compute the velocity. Pass
+	 *            null when the content jumped without moving, for instance
+	 *            after a new base matrix, so the jump isn't counted as motion
+	 */
+	public static ViewportSnapshot capture( ZoomPanEngine engine, long sequence, long timeNanos, ViewportSnapshot previous ) {
+		final FloatRect bitmapRect = engine.getBitmapRect();
+		final float contentWidth = engine.getContentWidth();
+		final float contentHeight = engine.getContentHeight();
+		if ( null == bitmapRect || contentWidth <= 0 || contentHeight <= 0 || bitmapRect.isEmpty() ) {
+			return new ViewportSnapshot( sequence, timeNanos, 0, 0, 0, 0, 0, 0, 0, 0, engine.getViewWidth(), engine.getViewHeight(), 0, 0 );
+		}
+
+		// the axes can have different scales, see ZoomType#FILL_TO_SCREEN
+		final float scaleX = bitmapRect.width() / contentWidth;
+		final float scaleY = bitmapRect.height() / contentHeight;
+		final float left = Math.max( 0, -bitmapRect.left / scaleX );
+		final float top = Math.max( 0, -bitmapRect.top / scaleY );
+		final float right = Math.min( contentWidth, ( engine.getViewWidth() - bitmapRect.left ) / scaleX );
+		final float bottom = Math.min( contentHeight, ( engine.getViewHeight() - bitmapRect.top ) / scaleY );
+
+		float velocityX = 0;
+		float velocityY = 0;
+		if ( null != previous && !previous.isEmpty() && contentWidth == previous.mContentWidth && contentHeight == previous.mContentHeight ) {
+			if ( timeNanos > previous.mTimeNanos ) {
+				final float seconds = ( timeNanos - previous.mTimeNanos ) / 1000000000f;
+				final float sampleX = ( ( left + right ) - ( previous.mLeft + previous.mRight ) ) / 2 / seconds;
+				final float sampleY = ( ( top + bottom ) - ( previous.mTop + previous.mBottom ) ) / 2 / seconds;
+
+				// exponential smoothing, weighted by the time elapsed so it
+				// doesn't depend on the frame rate
+				final float weight = 1 - (float) Math.exp( -seconds / VELOCITY_TIME_CONSTANT );
+				velocityX = previous.mVelocityX + ( sampleX - previous.mVelocityX ) * weight;
+				velocityY = previous.mVelocityY + ( sampleY - previous.mVelocityY ) * weight;
+			} else {
+				// same clock tick, keep the last measure
+				velocityX = previous.mVelocityX;
+				velocityY = previous.mVelocityY;
+			}
+		}
+
+		return new ViewportSnapshot( sequence, timeNanos, left, top, right, bottom, scaleX, scaleY, velocityX, velocityY,
+				engine.getViewWidth(), engine.getViewHeight(), contentWidth, contentHeight );
+	}
+
+	public long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * Returns the time the snapshot was captured at, from
+	 * {@link System#nanoTime()}
+	 */
+	public long getTimeNanos() {
+		return mTimeNanos;
+	}
+
+	/**
+	 * Returns true if there's no content or it's not visible
+	 */
+	public boolean isEmpty() {
+		return mLeft >= mRight || mTop >= mBottom;
+	}
+
+	/**
+	 * Visible area, in content coordinates
+	 */
+	public float getLeft() {
+		return mLeft;
+	}
+
+	public float getTop() {
+		return mTop;
+	}
+
+	public float getRight() {
+		return mRight;
+	}
+
+	public float getBottom() {
+		return mBottom;
+	}
+
+	public void getVisibleRect( FloatRect outRect ) {
+		outRect.set( mLeft, mTop, mRight, mBottom );
+	}
+
+	/**
+	 * Returns the effective horizontal scale: view pixels per content pixel
+	 */
+	public float getScaleX() {
+		return mScaleX;
+	}
+
+	/**
+	 * Returns the effective vertical scale. Differs from the horizontal one
+	 * with {@link ZoomType#FILL_TO_SCREEN}
+	 */
+	public float getScaleY() {
+		return mScaleY;
+	}
+
+	/**
+	 * Returns the speed of the visible area centre on the x axis, in content
+	 * pixels per second, smoothed over the last few snapshots
+	 */
+	public float getVelocityX() {
+		return mVelocityX;
+	}
+
+	public float getVelocityY() {
+		return mVelocityY;
+	}
+
+	public float getViewWidth() {
+		return mViewWidth;
+	}
+
+	public float getViewHeight() {
+		return mViewHeight;
+	}
+
+	public float getContentWidth() {
+		return mContentWidth;
+	}
+
+	public float getContentHeight() {
+		return mContentHeight;
+	}
+
+	@Override
+	public String toString() {
+		return "ViewportSnapshot{#" + mSequence + " visible=(" + mLeft + ", " + mTop + ", " + mRight + ", " + mBottom + ") scale=(" + mScaleX
+				+ ", " + mScaleY + ") velocity=(" + mVelocityX + ", " + mVelocityY + ")}";
+	}
+}
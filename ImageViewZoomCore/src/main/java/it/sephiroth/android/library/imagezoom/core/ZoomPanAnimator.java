@@ -0,0 +1,183 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+import it.sephiroth.android.library.imagezoom.easing.Cubic;
+import it.sephiroth.android.library.imagezoom.easing.Easing;
+
+/**
+ * Computes the zoom and scroll animation steps. It has no clock of its own:
+ * the host calls {@link #step(long)} once per frame and applies the values
+ * passed to its {@link Target}.<br />
+ * A new zoom animation replaces the running one, a new scroll animation is
+ * merged with the running one (the remaining distance is added to the new
+ * one). Zoom and scroll can run at the same time.
+ *
+ */
+public class ZoomPanAnimator {
+
+	public interface Target {
+
+		/**
+		 * Zoom to the given absolute scale
+		 */
+		void onZoomStep( float scale, float centerX, float centerY );
+
+		/**
+		 * Scroll by the given relative amount
+		 */
+		void onPanStep( double dx, double dy );
+
+		/**
+		 * The scroll animation reached its end
+		 */
+		void onPanEnd();
+	}
+
+	protected final Target mTarget;
+	protected Easing mEasing;
+
+	boolean mZooming;
+	long mZoomStart;
+	float mZoomDuration;
+	float mFromScale;
+	float mToScale;
+	float mZoomCenterX;
+	float mZoomCenterY;
+
+	boolean mPanning;
+	long mPanStart;
+	double mPanDuration;
+	double mPanX;
+	double mPanY;
+	double mPannedX;
+	double mPannedY;
+
+	public ZoomPanAnimator( Target target ) {
+		this( target, new Cubic() );
+	}
+
+	public ZoomPanAnimator( Target target, Easing easing ) {
+		mTarget = target;
+		mEasing = easing;
+	}
+
+	/**
+	 * Set the easing of the scroll animations. The zoom ones are linear
+	 */
+	public void setEasing( Easing easing ) {
+		mEasing = easing;
+	}
+
+	public Easing getEasing() {
+		return mEasing;
+	}
+
+	public void zoom( long now, float fromScale, float toScale, float centerX, float centerY, float durationMs ) {
+		mZooming = true;
+		mZoomStart = now;
+		mZoomDuration = durationMs;
+		mFromScale = fromScale;
+		mToScale = toScale;
+		mZoomCenterX = centerX;
+		mZoomCenterY = centerY;
+	}
+
+	public void pan( long now, double dx, double dy, double durationMs ) {
+		if ( mPanning ) {
+			dx += mPanX - mPannedX;
+			dy += mPanY - mPannedY;
+		}
+		mPanning = true;
+		mPanStart = now;
+		mPanDuration = durationMs;
+		mPanX = dx;
+		mPanY = dy;
+		mPannedX = 0;
+		mPannedY = 0;
+	}
+
+	public void cancelZoom() {
+		mZooming = false;
+	}
+
+	public void cancelPan() {
+		mPanning = false;
+	}
+
+	public void cancel() {
+		mZooming = false;
+		mPanning = false;
+	}
+
+	public boolean isRunning() {
+		return mZooming || mPanning;
+	}
+
+	public boolean isZooming() {
+		return mZooming;
+	}
+
+	public boolean isPanning() {
+		return mPanning;
+	}
+
+	/**
+	 * Returns the scale the running zoom animation ends at
+	 */
+	public float getZoomTarget() {
+		return mToScale;
+	}
+
+	/**
+	 * Returns the x coordinate, in view space, the running zoom animation is
+	 * centered on
+	 */
+	public float getZoomCenterX() {
+		return mZoomCenterX;
+	}
+
+	public float getZoomCenterY() {
+		return mZoomCenterY;
+	}
+
+	/**
+	 * Returns the distance the scroll animation still has to travel on the x
+	 * axis
+	 */
+	public double getPanRemainingX() {
+		return mPanning ? mPanX - mPannedX : 0;
+	}
+
+	public double getPanRemainingY() {
+		return mPanning ? mPanY - mPannedY : 0;
+	}
+
+	/**
+	 * Apply the values of the given time to the target
+	 *
+	 * @return true if an animation is still running
+	 */
+	public boolean step( long now ) {
+		if ( mZooming ) {
+			float currentMs = Math.max( 0, Math.min( mZoomDuration, now - mZoomStart ) );
+			float target = mFromScale + ( mToScale - mFromScale ) * currentMs / mZoomDuration;
+			mTarget.onZoomStep( target, mZoomCenterX, mZoomCenterY );
+			if ( currentMs >= mZoomDuration ) {
+				mZooming = false;
+			}
+		}
+
+		if ( mPanning ) {
+			double currentMs = Math.max( 0, Math.min( mPanDuration, now - mPanStart ) );
+			double x = mEasing.easeOut( currentMs, 0, mPanX, mPanDuration );
+			double y = mEasing.easeOut( currentMs, 0, mPanY, mPanDuration );
+			mTarget.onPanStep( x - mPannedX, y - mPannedY );
+			mPannedX = x;
+			mPannedY = y;
+			if ( currentMs >= mPanDuration ) {
+				mPanning = false;
+				mTarget.onPanEnd();
+			}
+		}
+		return isRunning();
+	}
+}
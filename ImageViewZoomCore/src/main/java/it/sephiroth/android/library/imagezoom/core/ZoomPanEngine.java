@@ -0,0 +1,323 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+/**
+ * Zoom and pan math of the image view, without any Android dependency.<br />
+ * The displayed transform is the base transform of the content (which fits
+ * the image into the view, see
+ * {@link #computeBaseMatrix(ZoomType, float, float, float, float, float, Affine)})
+ * followed by the support transform: a uniform scale and a translation
+ * driven by the user.<br />
+ * The rects returned by the getters are reused. Not thread safe.
+ *
+ */
+public class ZoomPanEngine {
+
+	protected float mViewWidth;
+	protected float mViewHeight;
+
+	protected Affine mBaseMatrix;
+	protected float mContentWidth;
+	protected float mContentHeight;
+
+	protected float mScale = 1f;
+	protected float mTransX;
+	protected float mTransY;
+
+	protected final FloatRect mBitmapRect = new FloatRect();
+	protected final FloatRect mCenterRect = new FloatRect();
+	protected final FloatRect mScrollRect = new FloatRect();
+
+	public void setViewSize( float width, float height ) {
+		mViewWidth = width;
+		mViewHeight = height;
+	}
+
+	public float getViewWidth() {
+		return mViewWidth;
+	}
+
+	public float getViewHeight() {
+		return mViewHeight;
+	}
+
+	/**
+	 * Set the displayed content
+	 *
+	 * @param baseMatrix
+	 *            - the base transform of the content, kept by reference
+	 * @param width
+	 *            - the content intrinsic width
+	 * @param height
+	 *            - the content intrinsic height
+	 */
+	public void setContent( Affine baseMatrix, float width, float height ) {
+		mBaseMatrix = baseMatrix;
+		mContentWidth = width;
+		mContentHeight = height;
+	}
+
+	public void clearContent() {
+		setContent( null, 0, 0 );
+	}
+
+	public boolean hasContent() {
+		return null != mBaseMatrix;
+	}
+
+	public float getContentWidth() {
+		return mContentWidth;
+	}
+
+	public float getContentHeight() {
+		return mContentHeight;
+	}
+
+	public float getScale() {
+		return mScale;
+	}
+
+	public float getTranslateX() {
+		return mTransX;
+	}
+
+	public float getTranslateY() {
+		return mTransY;
+	}
+
+	/**
+	 * Set the support transform: a uniform scale followed by a translation
+	 */
+	public void setTransform( float scale, float translateX, float translateY ) {
+		mScale = scale;
+		mTransX = translateX;
+		mTransY = translateY;
+	}
+
+	public void reset() {
+		setTransform( 1f, 0f, 0f );
+	}
+
+	public void postTranslate( float dx, float dy ) {
+		mTransX += dx;
+		mTransY += dy;
+	}
+
+	/**
+	 * Post scale the support transform around the given point
+	 */
+	public void postScale( float scale, float centerX, float centerY ) {
+		mScale *= scale;
+		mTransX = ( mTransX - centerX ) * scale + centerX;
+		mTransY = ( mTransY - centerY ) * scale + centerY;
+	}
+
+	public void getSupportMatrix( Affine out ) {
+		out.setScaleTranslate( mScale, mScale, mTransX, mTransY );
+	}
+
+	/**
+	 * Compute the displayed transform: the base one followed by the support
+	 * one
+	 */
+	public void getDisplayMatrix( Affine out ) {
+		out.set( mBaseMatrix );
+		out.postScale( mScale, mScale );
+		out.postTranslate( mTransX, mTransY );
+	}
+
+	/**
+	 * Returns the content bounds in view coordinates, or null if there's no
+	 * content
+	 */
+	public FloatRect getBitmapRect() {
+		if ( null == mBaseMatrix ) {
+			return null;
+		}
+		mBitmapRect.set( 0, 0, mContentWidth, mContentHeight );
+		mBaseMatrix.mapRect( mBitmapRect );
+		mBitmapRect.set( mBitmapRect.left * mScale + mTransX, mBitmapRect.top * mScale + mTransY, mBitmapRect.right * mScale + mTransX,
+				mBitmapRect.bottom * mScale + mTransY );
+		return mBitmapRect;
+	}
+
+	/**
+	 * Returns, in left and top, the translation needed to center the content
+	 * if smaller than the view, or to move its edges to the view ones
+	 * otherwise
+	 */
+	public FloatRect getCenter( boolean horizontal, boolean vertical ) {
+		mCenterRect.setEmpty();
+		FloatRect rect = getBitmapRect();
+		if ( null == rect ) {
+			return mCenterRect;
+		}
+
+		float height = rect.height();
+		float width = rect.width();
+		float deltaX = 0, deltaY = 0;
+
+		if ( vertical ) {
+			if ( height < mViewHeight ) {
+				deltaY = ( mViewHeight - height ) / 2 - rect.top;
+			} else if ( rect.top > 0 ) {
+				deltaY = -rect.top;
+			} else if ( rect.bottom < mViewHeight ) {
+				deltaY = mViewHeight - rect.bottom;
+			}
+		}
+		if ( horizontal ) {
+			if ( width < mViewWidth ) {
+				deltaX = ( mViewWidth - width ) / 2 - rect.left;
+			} else if ( rect.left > 0 ) {
+				deltaX = -rect.left;
+			} else if ( rect.right < mViewWidth ) {
+				deltaX = mViewWidth - rect.right;
+			}
+		}
+		mCenterRect.set( deltaX, deltaY, 0, 0 );
+		return mCenterRect;
+	}
+
+	/**
+	 * Apply the translation returned by {@link #getCenter(boolean, boolean)}
+	 *
+	 * @return true if the transform changed
+	 */
+	public boolean center( boolean horizontal, boolean vertical ) {
+		FloatRect rect = getCenter( horizontal, vertical );
+		if ( rect.left != 0 || rect.top != 0 ) {
+			postTranslate( rect.left, rect.top );
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Clamp the scroll amount (left, top) of scrollRect so that the content
+	 * edges don't move past the view ones
+	 */
+	public void clampScroll( FloatRect bitmapRect, FloatRect scrollRect ) {
+		if ( null == bitmapRect ) {
+			return;
+		}
+		final float width = mViewWidth;
+		final float height = mViewHeight;
+
+		if ( bitmapRect.top >= 0 && bitmapRect.bottom <= height ) scrollRect.top = 0;
+		if ( bitmapRect.left >= 0 && bitmapRect.right <= width ) scrollRect.left = 0;
+		if ( bitmapRect.top + scrollRect.top >= 0 && bitmapRect.bottom > height ) scrollRect.top = (int) ( 0 - bitmapRect.top );
+		if ( bitmapRect.bottom + scrollRect.top <= height && bitmapRect.top < 0 ) scrollRect.top = (int) ( height - bitmapRect.bottom );
+		if ( bitmapRect.left + scrollRect.left >= 0 ) scrollRect.left = (int) ( 0 - bitmapRect.left );
+		if ( bitmapRect.right + scrollRect.left <= width ) scrollRect.left = (int) ( width - bitmapRect.right );
+	}
+
+	/**
+	 * Scroll by the given amount, clamped to the content edges, then center
+	 * the content
+	 */
+	public void panBy( float dx, float dy ) {
+		FloatRect rect = getBitmapRect();
+		if ( null == rect ) {
+			return;
+		}
+		mScrollRect.set( dx, dy, 0, 0 );
+		clampScroll( rect, mScrollRect );
+		postTranslate( mScrollRect.left, mScrollRect.top );
+		center( true, true );
+	}
+
+	/**
+	 * Zoom to the given scale, at most maxZoom, around the given point, then
+	 * center the content
+	 */
+	public void zoomTo( float scale, float centerX, float centerY, float maxZoom ) {
+		if ( scale > maxZoom ) scale = maxZoom;
+		postScale( scale / mScale, centerX, centerY );
+		center( true, true );
+	}
+
+	public static float clampScale( float scale, float minZoom, float maxZoom ) {
+		return Math.max( minZoom, Math.min( maxZoom, scale ) );
+	}
+
+	/**
+	 * Compute the max zoom of an image of the given size: 4 times the scale
+	 * at which its shortest side fills the view
+	 */
+	public static float computeMaxZoom( float imageWidth, float imageHeight, float viewWidth, float viewHeight ) {
+		float fw = imageWidth / viewWidth;
+		float fh = imageHeight / viewHeight;
+		return ( 1.0f / Math.min( fw, fh ) ) * 4;
+	}
+
+	/**
+	 * Compute the base transform of an image of size w x h for the given zoom
+	 * type
+	 *
+	 * @param maxScale
+	 *            - the max scale the base matrix can have
+	 */
+	public static void computeBaseMatrix( ZoomType type, float viewWidth, float viewHeight, float w, float h, float maxScale, Affine out ) {
+		float tw = 0.0f;
+		float th = 0.0f;
+
+		float widthScale = Math.min( viewWidth / w, maxScale );
+		float heightScale = Math.min( viewHeight / h, maxScale );
+		float scale;
+
+		switch ( type ) {
+			case FIT_TO_SCREEN_SMALL:
+				scale = Math.min( widthScale, heightScale );
+				widthScale = scale;
+				heightScale = scale;
+				break;
+
+			case FIT_TO_SCREEN_BIG:
+				if ( viewWidth > viewHeight ) {
+					scale = widthScale;
+					th = h;
+				} else {
+					scale = heightScale;
+					tw = -w;
+				}
+				widthScale = scale;
+				heightScale = scale;
+				break;
+
+			case FIT_TO_WIDTH:
+				heightScale = widthScale;
+				th = h;
+				break;
+
+			case FIT_TO_HEIGHT:
+				widthScale = heightScale;
+				tw = -w;
+				break;
+
+			default:
+				break;
+		}
+
+		out.setScaleTranslate( widthScale, heightScale, tw, th );
+	}
+
+	/**
+	 * Compute the scale at which an image should be decoded to be displayed
+	 * at full quality: the scale of its base transform times the max zoom,
+	 * never more than 1
+	 *
+	 * @param maxZoom
+	 *            - the max zoom, or a value <= 0 to use
+	 *            {@link #computeMaxZoom(float, float, float, float)}
+	 */
+	public static float computeDecodeScale( ZoomType type, float viewWidth, float viewHeight, float imageWidth, float imageHeight,
+			float maxZoom ) {
+		Affine matrix = new Affine();
+		computeBaseMatrix( type, viewWidth, viewHeight, imageWidth, imageHeight, Float.MAX_VALUE, matrix );
+		float baseScale = Math.max( matrix.getScaleX(), matrix.getScaleY() );
+		if ( maxZoom <= 0 ) {
+			maxZoom = computeMaxZoom( imageWidth, imageHeight, viewWidth, viewHeight );
+		}
+		return Math.min( 1f, baseScale * maxZoom );
+	}
+}
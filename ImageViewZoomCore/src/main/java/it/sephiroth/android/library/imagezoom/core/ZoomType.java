@@ -0,0 +1,21 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+/**
+ * How the base matrix fits the image into the view
+ *
+ */
+public enum ZoomType {
+
+	/** the whole image is visible, never magnified past the max scale */
+	FIT_TO_SCREEN_SMALL,
+
+	/** fit the longest view side */
+	FIT_TO_SCREEN_BIG,
+
+	FIT_TO_WIDTH,
+
+	FIT_TO_HEIGHT,
+
+	/** stretch the image to the view size */
+	FILL_TO_SCREEN
+}
@@ -0,0 +1,111 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AffineTest {
+
+	private static final float EPSILON = 1e-4f;
+
+	@Test
+	public void identity() {
+		Affine matrix = new Affine();
+		assertTrue( matrix.isIdentity() );
+		matrix.postTranslate( 1, 0 );
+		assertFalse( matrix.isIdentity() );
+		matrix.reset();
+		assertTrue( matrix.isIdentity() );
+	}
+
+	@Test
+	public void postScaleAroundPivot() {
+		Affine matrix = new Affine();
+		matrix.postScale( 2, 3, 10, 20 );
+
+		// the pivot doesn't move
+		assertEquals( 10, matrix.mapX( 10, 20 ), EPSILON );
+		assertEquals( 20, matrix.mapY( 10, 20 ), EPSILON );
+		assertEquals( -10, matrix.getTranslateX(), EPSILON );
+		assertEquals( -40, matrix.getTranslateY(), EPSILON );
+	}
+
+	@Test
+	public void postScaleScalesTranslation() {
+		Affine matrix = new Affine();
+		matrix.setScaleTranslate( 2, 2, 10, 20 );
+		matrix.postScale( 0.5f, 0.5f );
+		assertEquals( 1, matrix.getScaleX(), EPSILON );
+		assertEquals( 5, matrix.getTranslateX(), EPSILON );
+		assertEquals( 10, matrix.getTranslateY(), EPSILON );
+	}
+
+	@Test
+	public void preScaleKeepsTranslation() {
+		Affine matrix = new Affine();
+		matrix.setScaleTranslate( 2, 2, 10, 20 );
+		matrix.preScale( 3, 4 );
+		assertEquals( 6, matrix.getScaleX(), EPSILON );
+		assertEquals( 8, matrix.getScaleY(), EPSILON );
+		assertEquals( 10, matrix.getTranslateX(), EPSILON );
+		assertEquals( 20, matrix.getTranslateY(), EPSILON );
+	}
+
+	@Test
+	public void postConcatAppliesOtherLast() {
+		Affine matrix = new Affine();
+		matrix.setTranslate( 10, 0 );
+		Affine other = new Affine();
+		other.setScale( 2, 2 );
+		matrix.postConcat( other );
+
+		assertEquals( 22, matrix.mapX( 1, 1 ), EPSILON );
+		assertEquals( 2, matrix.mapY( 1, 1 ), EPSILON );
+	}
+
+	@Test
+	public void mapRectSortsEdges() {
+		Affine matrix = new Affine();
+		matrix.setScaleTranslate( -2, 1, 100, 5 );
+		FloatRect rect = new FloatRect( 0, 0, 10, 10 );
+		matrix.mapRect( rect );
+		assertEquals( 80, rect.left, EPSILON );
+		assertEquals( 5, rect.top, EPSILON );
+		assertEquals( 100, rect.right, EPSILON );
+		assertEquals( 15, rect.bottom, EPSILON );
+	}
+
+	@Test
+	public void mapRectWithSkew() {
+		float[] values = { 0, -1, 0, 1, 0, 0, 0, 0, 1 };
+		Affine matrix = new Affine();
+		matrix.setValues( values );
+		assertFalse( matrix.isScaleTranslate() );
+
+		// a quarter turn
+		FloatRect rect = new FloatRect( 0, 0, 20, 10 );
+		matrix.mapRect( rect );
+		assertEquals( -10, rect.left, EPSILON );
+		assertEquals( 0, rect.top, EPSILON );
+		assertEquals( 0, rect.right, EPSILON );
+		assertEquals( 20, rect.bottom, EPSILON );
+	}
+
+	@Test
+	public void valuesRoundTrip() {
+		Affine matrix = new Affine();
+		matrix.setScaleTranslate( 2, 3, 4, 5 );
+		float[] values = new float[9];
+		matrix.getValues( values );
+		assertArrayEquals( new float[] { 2, 0, 4, 0, 3, 5, 0, 0, 1 }, values, 0 );
+
+		Affine copy = new Affine();
+		copy.setValues( values );
+		assertEquals( matrix, copy );
+		assertEquals( matrix.hashCode(), copy.hashCode() );
+		assertEquals( matrix, new Affine( matrix ) );
+	}
+}
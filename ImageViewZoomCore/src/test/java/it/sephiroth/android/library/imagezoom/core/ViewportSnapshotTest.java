@@ -0,0 +1,99 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A 1000x1000 image in a 500x500 view at scale 1, captured every 10ms
+ *
+ */
+public class ViewportSnapshotTest {
+
+	private static final float EPSILON = 1e-2f;
+	private static final long FRAME_NANOS = 10000000L;
+
+	private ZoomPanEngine mEngine;
+
+	@Before
+	public void setUp() {
+		mEngine = new ZoomPanEngine();
+		mEngine.setViewSize( 500, 500 );
+		mEngine.setContent( new Affine(), 1000, 1000 );
+	}
+
+	@Test
+	public void visibleRect() {
+		mEngine.postTranslate( -100, -200 );
+		ViewportSnapshot snapshot = ViewportSnapshot.capture( mEngine, 1, 0, null );
+		assertEquals( 100, snapshot.getLeft(), EPSILON );
+		assertEquals( 200, snapshot.getTop(), EPSILON );
+		assertEquals( 600, snapshot.getRight(), EPSILON );
+		assertEquals( 700, snapshot.getBottom(), EPSILON );
+		assertEquals( 1, snapshot.getScaleX(), EPSILON );
+	}
+
+	@Test
+	public void velocityIsSmoothed() {
+		ViewportSnapshot snapshot = ViewportSnapshot.capture( mEngine, 1, 0, null );
+		assertEquals( 0, snapshot.getVelocityX(), EPSILON );
+
+		// 5px per frame: 500px/s
+		mEngine.postTranslate( -5, 0 );
+		snapshot = ViewportSnapshot.capture( mEngine, 2, FRAME_NANOS, snapshot );
+		final float first = snapshot.getVelocityX();
+		assertTrue( first > 0 && first < 500 );
+
+		for ( int i = 3; i < 60; i++ ) {
+			mEngine.postTranslate( -5, 0 );
+			snapshot = ViewportSnapshot.capture( mEngine, i, i * FRAME_NANOS, snapshot );
+		}
+		assertEquals( 500, snapshot.getVelocityX(), 1 );
+		assertEquals( 0, snapshot.getVelocityY(), EPSILON );
+
+		// a single frame without motion doesn't drop it to zero
+		snapshot = ViewportSnapshot.capture( mEngine, 60, 60 * FRAME_NANOS, snapshot );
+		assertTrue( snapshot.getVelocityX() > 0 && snapshot.getVelocityX() < 500 );
+	}
+
+	@Test
+	public void sameTickKeepsVelocity() {
+		ViewportSnapshot snapshot = ViewportSnapshot.capture( mEngine, 1, 0, null );
+		mEngine.postTranslate( -10, 0 );
+		snapshot = ViewportSnapshot.capture( mEngine, 2, FRAME_NANOS, snapshot );
+		final float velocity = snapshot.getVelocityX();
+
+		mEngine.postTranslate( -10, 0 );
+		snapshot = ViewportSnapshot.capture( mEngine, 3, FRAME_NANOS, snapshot );
+		assertEquals( velocity, snapshot.getVelocityX(), EPSILON );
+	}
+
+	@Test
+	public void jumpWithoutPreviousIsNotMotion() {
+		ViewportSnapshot snapshot = ViewportSnapshot.capture( mEngine, 1, 0, null );
+
+		// a new base matrix moves the visible area...
+		Affine base = new Affine();
+		base.setTranslate( -400, 0 );
+		mEngine.setContent( base, 1000, 1000 );
+
+		// ...but without the previous snapshot it doesn't count
+		snapshot = ViewportSnapshot.capture( mEngine, 2, FRAME_NANOS, null );
+		assertEquals( 400, snapshot.getLeft(), EPSILON );
+		assertEquals( 0, snapshot.getVelocityX(), EPSILON );
+	}
+
+	@Test
+	public void newContentSizeResetsVelocity() {
+		ViewportSnapshot snapshot = ViewportSnapshot.capture( mEngine, 1, 0, null );
+		mEngine.postTranslate( -10, 0 );
+		snapshot = ViewportSnapshot.capture( mEngine, 2, FRAME_NANOS, snapshot );
+		assertTrue( snapshot.getVelocityX() > 0 );
+
+		mEngine.setContent( new Affine(), 2000, 2000 );
+		snapshot = ViewportSnapshot.capture( mEngine, 3, 2 * FRAME_NANOS, snapshot );
+		assertEquals( 0, snapshot.getVelocityX(), EPSILON );
+	}
+}
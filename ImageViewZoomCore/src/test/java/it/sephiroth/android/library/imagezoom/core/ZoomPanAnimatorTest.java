@@ -0,0 +1,138 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZoomPanAnimatorTest {
+
+	private static final double EPSILON = 1e-4;
+
+	/**
+	 * Records the values applied by the animator
+	 */
+	static class RecordingTarget implements ZoomPanAnimator.Target {
+
+		float scale;
+		float centerX;
+		float centerY;
+		double pannedX;
+		double pannedY;
+		int zoomSteps;
+		int panEnds;
+
+		@Override
+		public void onZoomStep( float scale, float centerX, float centerY ) {
+			this.scale = scale;
+			this.centerX = centerX;
+			this.centerY = centerY;
+			zoomSteps++;
+		}
+
+		@Override
+		public void onPanStep( double dx, double dy ) {
+			pannedX += dx;
+			pannedY += dy;
+		}
+
+		@Override
+		public void onPanEnd() {
+			panEnds++;
+		}
+	}
+
+	private RecordingTarget mTarget;
+	private ZoomPanAnimator mAnimator;
+
+	@Before
+	public void setUp() {
+		mTarget = new RecordingTarget();
+		mAnimator = new ZoomPanAnimator( mTarget );
+	}
+
+	@Test
+	public void zoomIsLinear() {
+		mAnimator.zoom( 1000, 1, 3, 50, 60, 200 );
+		assertTrue( mAnimator.isZooming() );
+		assertEquals( 3, mAnimator.getZoomTarget(), EPSILON );
+		assertEquals( 50, mAnimator.getZoomCenterX(), EPSILON );
+		assertEquals( 60, mAnimator.getZoomCenterY(), EPSILON );
+
+		assertTrue( mAnimator.step( 1100 ) );
+		assertEquals( 2, mTarget.scale, EPSILON );
+		assertEquals( 50, mTarget.centerX, EPSILON );
+		assertEquals( 60, mTarget.centerY, EPSILON );
+
+		// past the end the target scale is applied
+		assertFalse( mAnimator.step( 1500 ) );
+		assertEquals( 3, mTarget.scale, EPSILON );
+		assertFalse( mAnimator.isZooming() );
+		assertEquals( 2, mTarget.zoomSteps );
+	}
+
+	@Test
+	public void newZoomReplacesRunningOne() {
+		mAnimator.zoom( 0, 1, 3, 0, 0, 100 );
+		mAnimator.step( 50 );
+		mAnimator.zoom( 50, 2, 1, 10, 10, 100 );
+		mAnimator.step( 150 );
+		assertEquals( 1, mTarget.scale, EPSILON );
+		assertEquals( 10, mTarget.centerX, EPSILON );
+	}
+
+	@Test
+	public void panTravelsTheWholeDistance() {
+		mAnimator.pan( 0, 100, -50, 300 );
+		assertTrue( mAnimator.step( 100 ) );
+		assertTrue( mTarget.pannedX > 0 && mTarget.pannedX < 100 );
+		assertEquals( 100 - mTarget.pannedX, mAnimator.getPanRemainingX(), EPSILON );
+		assertEquals( -50 - mTarget.pannedY, mAnimator.getPanRemainingY(), EPSILON );
+		assertEquals( 0, mTarget.panEnds );
+
+		assertFalse( mAnimator.step( 300 ) );
+		assertEquals( 100, mTarget.pannedX, EPSILON );
+		assertEquals( -50, mTarget.pannedY, EPSILON );
+		assertEquals( 1, mTarget.panEnds );
+		assertEquals( 0, mAnimator.getPanRemainingX(), EPSILON );
+	}
+
+	@Test
+	public void newPanIsMergedWithRunningOne() {
+		mAnimator.pan( 0, 100, 0, 300 );
+		mAnimator.step( 100 );
+		mAnimator.pan( 100, 20, 10, 300 );
+		assertFalse( mAnimator.step( 400 ) );
+
+		// the remaining distance of the first one isn't lost
+		assertEquals( 120, mTarget.pannedX, EPSILON );
+		assertEquals( 10, mTarget.pannedY, EPSILON );
+		assertEquals( 1, mTarget.panEnds );
+	}
+
+	@Test
+	public void zoomAndPanRunTogether() {
+		mAnimator.zoom( 0, 1, 2, 0, 0, 100 );
+		mAnimator.pan( 0, 10, 10, 200 );
+		assertTrue( mAnimator.step( 100 ) );
+		assertFalse( mAnimator.isZooming() );
+		assertTrue( mAnimator.isPanning() );
+		assertFalse( mAnimator.step( 200 ) );
+		assertEquals( 2, mTarget.scale, EPSILON );
+		assertEquals( 10, mTarget.pannedX, EPSILON );
+	}
+
+	@Test
+	public void cancel() {
+		mAnimator.zoom( 0, 1, 2, 0, 0, 100 );
+		mAnimator.pan( 0, 10, 10, 100 );
+		mAnimator.cancel();
+		assertFalse( mAnimator.isRunning() );
+		assertFalse( mAnimator.step( 50 ) );
+		assertEquals( 0, mTarget.zoomSteps );
+		assertEquals( 0, mTarget.pannedX, EPSILON );
+		assertEquals( 0, mTarget.panEnds );
+	}
+}
@@ -0,0 +1,256 @@
+package it.sephiroth.android.library.imagezoom.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The expected values are the ones the view computed before the math moved
+ * to the engine: a 1000x500 image in a 480x800 view, max zoom 4
+ *
+ */
+public class ZoomPanEngineTest {
+
+	private static final float EPSILON = 1e-4f;
+
+	private static final float VIEW_WIDTH = 480;
+	private static final float VIEW_HEIGHT = 800;
+	private static final float IMAGE_WIDTH = 1000;
+	private static final float IMAGE_HEIGHT = 500;
+	private static final float MAX_ZOOM = 4;
+
+	private static Affine baseMatrix( ZoomType type ) {
+		Affine matrix = new Affine();
+		ZoomPanEngine.computeBaseMatrix( type, VIEW_WIDTH, VIEW_HEIGHT, IMAGE_WIDTH, IMAGE_HEIGHT, MAX_ZOOM, matrix );
+		return matrix;
+	}
+
+	private static ZoomPanEngine engine( ZoomType type ) {
+		ZoomPanEngine engine = new ZoomPanEngine();
+		engine.setViewSize( VIEW_WIDTH, VIEW_HEIGHT );
+		engine.setContent( baseMatrix( type ), IMAGE_WIDTH, IMAGE_HEIGHT );
+		return engine;
+	}
+
+	private static void assertMatrix( float sx, float sy, float tx, float ty, Affine matrix ) {
+		assertTrue( matrix.isScaleTranslate() );
+		assertEquals( sx, matrix.getScaleX(), EPSILON );
+		assertEquals( sy, matrix.getScaleY(), EPSILON );
+		assertEquals( tx, matrix.getTranslateX(), EPSILON );
+		assertEquals( ty, matrix.getTranslateY(), EPSILON );
+	}
+
+	private static void assertRect( float left, float top, float right, float bottom, FloatRect rect ) {
+		assertEquals( left, rect.left, EPSILON );
+		assertEquals( top, rect.top, EPSILON );
+		assertEquals( right, rect.right, EPSILON );
+		assertEquals( bottom, rect.bottom, EPSILON );
+	}
+
+	private static void assertSupport( float scale, float tx, float ty, ZoomPanEngine engine ) {
+		assertEquals( scale, engine.getScale(), EPSILON );
+		assertEquals( tx, engine.getTranslateX(), EPSILON );
+		assertEquals( ty, engine.getTranslateY(), EPSILON );
+	}
+
+	@Test
+	public void baseMatrixFitToScreenSmall() {
+		assertMatrix( 0.48f, 0.48f, 0, 0, baseMatrix( ZoomType.FIT_TO_SCREEN_SMALL ) );
+	}
+
+	@Test
+	public void baseMatrixFitToScreenBig() {
+		// portrait view: fit the height
+		assertMatrix( 1.6f, 1.6f, -1000, 0, baseMatrix( ZoomType.FIT_TO_SCREEN_BIG ) );
+
+		// landscape view: fit the width
+		Affine matrix = new Affine();
+		ZoomPanEngine.computeBaseMatrix( ZoomType.FIT_TO_SCREEN_BIG, VIEW_HEIGHT, VIEW_WIDTH, IMAGE_WIDTH, IMAGE_HEIGHT, MAX_ZOOM, matrix );
+		assertMatrix( 0.8f, 0.8f, 0, 500, matrix );
+	}
+
+	@Test
+	public void baseMatrixFitToWidth() {
+		assertMatrix( 0.48f, 0.48f, 0, 500, baseMatrix( ZoomType.FIT_TO_WIDTH ) );
+	}
+
+	@Test
+	public void baseMatrixFitToHeight() {
+		assertMatrix( 1.6f, 1.6f, -1000, 0, baseMatrix( ZoomType.FIT_TO_HEIGHT ) );
+	}
+
+	@Test
+	public void baseMatrixFillToScreen() {
+		assertMatrix( 0.48f, 1.6f, 0, 0, baseMatrix( ZoomType.FILL_TO_SCREEN ) );
+	}
+
+	@Test
+	public void baseMatrixMaxScale() {
+		Affine matrix = new Affine();
+		ZoomPanEngine.computeBaseMatrix( ZoomType.FIT_TO_SCREEN_SMALL, VIEW_WIDTH, VIEW_HEIGHT, 100, 100, 2, matrix );
+		assertMatrix( 2, 2, 0, 0, matrix );
+	}
+
+	@Test
+	public void centerFitToScreenSmall() {
+		ZoomPanEngine engine = engine( ZoomType.FIT_TO_SCREEN_SMALL );
+		assertRect( 0, 0, 480, 240, engine.getBitmapRect() );
+		assertRect( 0, 280, 0, 0, engine.getCenter( true, true ) );
+		assertRect( 0, 0, 0, 0, engine.getCenter( true, false ) );
+	}
+
+	@Test
+	public void centerFitToScreenBig() {
+		ZoomPanEngine engine = engine( ZoomType.FIT_TO_SCREEN_BIG );
+		assertRect( -1000, 0, 600, 800, engine.getBitmapRect() );
+		assertRect( 0, 0, 0, 0, engine.getCenter( true, true ) );
+	}
+
+	@Test
+	public void centerFitToWidth() {
+		ZoomPanEngine engine = engine( ZoomType.FIT_TO_WIDTH );
+		assertRect( 0, 500, 480, 740, engine.getBitmapRect() );
+		assertRect( 0, -220, 0, 0, engine.getCenter( true, true ) );
+	}
+
+	@Test
+	public void centerFitToHeight() {
+		ZoomPanEngine engine = engine( ZoomType.FIT_TO_HEIGHT );
+		assertRect( 0, 0, 0, 0, engine.getCenter( true, true ) );
+
+		// the left edge moved into the view is pulled back
+		engine.postTranslate( 1100, 0 );
+		assertRect( -100, 0, 0, 0, engine.getCenter( true, true ) );
+	}
+
+	@Test
+	public void centerFillToScreen() {
+		ZoomPanEngine engine = engine( ZoomType.FILL_TO_SCREEN );
+		assertRect( 0, 0, 480, 800, engine.getBitmapRect() );
+		assertRect( 0, 0, 0, 0, engine.getCenter( true, true ) );
+	}
+
+	@Test
+	public void centerWithoutContent() {
+		ZoomPanEngine engine = new ZoomPanEngine();
+		engine.setViewSize( VIEW_WIDTH, VIEW_HEIGHT );
+		assertNull( engine.getBitmapRect() );
+		assertTrue( engine.getCenter( true, true ).isEmpty() );
+		assertFalse( engine.center( true, true ) );
+	}
+
+	@Test
+	public void zoomToFitToScreenSmall() {
+		ZoomPanEngine engine = engine( ZoomType.FIT_TO_SCREEN_SMALL );
+		engine.zoomTo( 2, 240, 400, MAX_ZOOM );
+		assertSupport( 2, -240, 160, engine );
+		assertRect( -240, 160, 720, 640, engine.getBitmapRect() );
+	}
+
+	@Test
+	public void zoomToFitToScreenBig() {
+		ZoomPanEngine engine = engine( ZoomType.FIT_TO_SCREEN_BIG );
+		engine.zoomTo( 2, 240, 400, MAX_ZOOM );
+		assertSupport( 2, -240, -400, engine );
+		assertRect( -2240, -400, 960, 1200, engine.getBitmapRect() );
+	}
+
+	@Test
+	public void zoomToFitToWidth() {
+		ZoomPanEngine engine = engine( ZoomType.FIT_TO_WIDTH );
+		engine.zoomTo( 2, 240, 400, MAX_ZOOM );
+		assertSupport( 2, -240, -840, engine );
+		assertRect( -240, 160, 720, 640, engine.getBitmapRect() );
+	}
+
+	@Test
+	public void zoomToFitToHeight() {
+		ZoomPanEngine engine = engine( ZoomType.FIT_TO_HEIGHT );
+		engine.zoomTo( 2, 240, 400, MAX_ZOOM );
+		assertSupport( 2, -240, -400, engine );
+	}
+
+	@Test
+	public void zoomToFillToScreen() {
+		ZoomPanEngine engine = engine( ZoomType.FILL_TO_SCREEN );
+		engine.zoomTo( 2, 240, 400, MAX_ZOOM );
+		assertSupport( 2, -240, -400, engine );
+		assertRect( -240, -400, 720, 1200, engine.getBitmapRect() );
+	}
+
+	@Test
+	public void zoomToMaxZoom() {
+		ZoomPanEngine engine = engine( ZoomType.FILL_TO_SCREEN );
+		engine.zoomTo( 10, 0, 0, MAX_ZOOM );
+		assertEquals( MAX_ZOOM, engine.getScale(), EPSILON );
+
+		// back to 1 the content fills the view again
+		engine.zoomTo( 1, 0, 0, MAX_ZOOM );
+		assertSupport( 1, 0, 0, engine );
+	}
+
+	@Test
+	public void panByClampsToEdges() {
+		ZoomPanEngine engine = engine( ZoomType.FILL_TO_SCREEN );
+		engine.zoomTo( 2, 240, 400, MAX_ZOOM );
+
+		engine.panBy( 100, 100 );
+		assertSupport( 2, -140, -300, engine );
+
+		// past the top left corner
+		engine.panBy( 1000, 1000 );
+		assertSupport( 2, 0, 0, engine );
+
+		// the content is smaller than the view: nothing moves
+		engine.zoomTo( 1, 0, 0, MAX_ZOOM );
+		engine.panBy( 50, 50 );
+		assertSupport( 1, 0, 0, engine );
+	}
+
+	@Test
+	public void clampScale() {
+		assertEquals( 1, ZoomPanEngine.clampScale( 0.5f, 1, 4 ), EPSILON );
+		assertEquals( 4, ZoomPanEngine.clampScale( 5, 1, 4 ), EPSILON );
+		assertEquals( 2, ZoomPanEngine.clampScale( 2, 1, 4 ), EPSILON );
+	}
+
+	@Test
+	public void computeMaxZoom() {
+		// the shortest side fills the view at 1.6
+		assertEquals( 6.4f, ZoomPanEngine.computeMaxZoom( IMAGE_WIDTH, IMAGE_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT ), EPSILON );
+	}
+
+	@Test
+	public void maxZoomOfDownsampledImage() {
+		final float viewWidth = 1080;
+		final float viewHeight = 1920;
+		final float maxZoom = ZoomPanEngine.computeMaxZoom( 8000, 6000, viewWidth, viewHeight );
+		assertEquals( 1.28f, maxZoom, EPSILON );
+
+		final float scale = ZoomPanEngine.computeDecodeScale( ZoomType.FIT_TO_SCREEN_SMALL, viewWidth, viewHeight, 8000, 6000, maxZoom );
+		final float decodedWidth = (float) Math.ceil( 8000 * scale );
+		final float decodedHeight = (float) Math.ceil( 6000 * scale );
+
+		// computed on the decoded size the range would be much wider...
+		final float decodedMaxZoom = ZoomPanEngine.computeMaxZoom( decodedWidth, decodedHeight, viewWidth, viewHeight );
+		assertTrue( decodedMaxZoom > maxZoom * 5 );
+
+		Affine base = new Affine();
+		ZoomPanEngine.computeBaseMatrix( ZoomType.FIT_TO_SCREEN_SMALL, viewWidth, viewHeight, decodedWidth, decodedHeight, maxZoom, base );
+		assertTrue( base.getScaleX() * decodedMaxZoom > 1 );
+
+		// ...while at the source one the decoded pixels are never magnified
+		assertTrue( base.getScaleX() * maxZoom <= 1 );
+	}
+
+	@Test
+	public void computeDecodeScale() {
+		assertEquals( 1, ZoomPanEngine.computeDecodeScale( ZoomType.FIT_TO_SCREEN_SMALL, VIEW_WIDTH, VIEW_HEIGHT, IMAGE_WIDTH, IMAGE_HEIGHT, 0 ),
+				EPSILON );
+		assertEquals( 0.96f,
+				ZoomPanEngine.computeDecodeScale( ZoomType.FIT_TO_SCREEN_SMALL, VIEW_WIDTH, VIEW_HEIGHT, IMAGE_WIDTH, IMAGE_HEIGHT, 2 ), EPSILON );
+	}
+}